@@ -0,0 +1,129 @@
+package com.ilsian.commonweb.res;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * AssetBundle - A set of static resources of one type (js or css) concatenated into a
+ * single resource whose file name carries a fingerprint of its content, for example
+ * 'common.1a2b3c4d5e.js'.  Since the name changes whenever the content does, bundles
+ * can be cached by browsers forever.
+ *
+ * Bundles that are being served are published by their logical name (e.g. 'common.js')
+ * so templates can find the fingerprinted URL through the 'assetBundles' shared variable
+ * of their configuration.  Each configuration created by the Loader has its own published
+ * bundles, which servlets share across a web server, see Loader.setPublishedBundles.
+ *
+ * @author justin
+ *
+ */
+public class AssetBundle {
+
+	public static final String DEFAULT_URL_PREFIX = "/res/";	// where static resources are mapped
+	
+	private final String _name;			// logical name, e.g. common.js
+	private final String _fileName;		// fingerprinted name, e.g. common.1a2b3c4d5e.js
+	private final String _hash;			// content fingerprint
+	private final byte[] _data;			// concatenated content
+	
+	/**
+	 * Constructor.  Create a bundle by concatenating resources, in order.
+	 * @param baseName Base name of the bundle, e.g. 'common'
+	 * @param ext Extension of the bundle and its resources, 'js' or 'css'
+	 * @param resClass Class who shares a path with the resources
+	 * @param resources Names of the resources to include
+	 * @throws IOException If any resource cannot be read
+	 */
+	public AssetBundle(String baseName, String ext, Class<?> resClass, String... resources) throws IOException {
+		// scripts are separated so a missing trailing newline or semicolon can't join statements
+		final byte[] separator = (ext.equals("js") ? "\n;\n" : "\n").getBytes("UTF-8");
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		final byte[] buf = new byte[8*1024];
+		for (String res:resources)
+		{
+			final InputStream is = resClass.getResourceAsStream(res);
+			if (is == null)
+				throw new IOException("Bundle resource not found: " + res);
+			try {
+				int len;
+				while ((len = is.read(buf)) != -1)
+					bos.write(buf, 0, len);
+			} finally {
+				is.close();
+			}
+			bos.write(separator);
+		}
+		
+		_data = bos.toByteArray();
+		_hash = fingerprint(_data);
+		_name = baseName + "." + ext;
+		_fileName = baseName + "." + _hash + "." + ext;
+	}
+	
+	/**
+	 * @return The logical name of the bundle, e.g. 'common.js'
+	 */
+	public String getName() {
+		return _name;
+	}
+	
+	/**
+	 * @return The fingerprinted file name of the bundle, e.g. 'common.1a2b3c4d5e.js'
+	 */
+	public String getFileName() {
+		return _fileName;
+	}
+	
+	/**
+	 * @return The content fingerprint
+	 */
+	public String getHash() {
+		return _hash;
+	}
+	
+	/**
+	 * @return The URL the bundle is served from
+	 */
+	public String getUrl() {
+		return DEFAULT_URL_PREFIX + _fileName;
+	}
+	
+	/**
+	 * @return The concatenated content, which must not be modified
+	 */
+	public byte[] getData() {
+		return _data;
+	}
+	
+	/**
+	 * Publish this bundle's URL under its logical name, so templates render it.  This should
+	 * only be done once the bundle is actually being served.
+	 * @param published Published bundle URLs by logical name, for example those of a
+	 * configuration (Loader.getPublishedBundles)
+	 */
+	public void publish(Map<String, String> published) {
+		published.put(_name, getUrl());
+	}
+	
+	/**
+	 * Compute a short content fingerprint
+	 * @param data Content
+	 * @return First 40 bits of the SHA-1 of the content, hex encoded
+	 */
+	static String fingerprint(byte[] data) {
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+			final StringBuilder sb = new StringBuilder(10);
+			for (int i=0;i<5;i++)
+				sb.append(String.format("%02x", digest[i] & 0xff));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every JRE is required to provide SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+}
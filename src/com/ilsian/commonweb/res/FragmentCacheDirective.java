@@ -0,0 +1,151 @@
+package com.ilsian.commonweb.res;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import freemarker.core.Environment;
+import freemarker.template.TemplateDirectiveBody;
+import freemarker.template.TemplateDirectiveModel;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateNumberModel;
+import freemarker.template.TemplateScalarModel;
+
+/**
+ * FragmentCacheDirective - A Freemarker directive that caches the rendered output of its
+ * body, so static parts of otherwise live pages are rendered once and replayed.  Configurations
+ * created by the Loader share it as 'cache':
+ * 
+ *   <@cache key="nav" ttl=300> ... </@cache>
+ * 
+ * key - Required, identifies the fragment within the template that contains the directive
+ * ttl - Optional, seconds the fragment is replayed before being rendered again (default 60)
+ * 
+ * The body must render the same for everyone who shares the key, so any data it depends on
+ * (the user level, for example) should be part of the key.
+ * 
+ * @author justin
+ *
+ */
+public class FragmentCacheDirective implements TemplateDirectiveModel {
+
+	public static final int DEFAULT_MAX_ENTRIES = 500;	// fragments held per configuration
+	public static final int DEFAULT_TTL = 60;			// seconds a fragment is replayed
+	
+	// a rendered fragment
+	static class Fragment {
+		final String mOutput;
+		final long mExpires;
+		
+		Fragment(String output, long expires) {
+			mOutput = output;
+			mExpires = expires;
+		}
+	}
+	
+	private long _hits = 0;
+	private long _misses = 0;
+	
+	// access ordered, so the least recently used fragment is evicted first
+	private final LinkedHashMap<String, Fragment> _fragments;
+	
+	public FragmentCacheDirective() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+	
+	/**
+	 * Constructor.  Create a fragment cache directive.
+	 * @param maxEntries Maximum number of fragments held
+	 */
+	public FragmentCacheDirective(final int maxEntries) {
+		_fragments = new LinkedHashMap<String, Fragment>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Fragment> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+	
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void execute(Environment env, Map params, TemplateModel[] loopVars, TemplateDirectiveBody body) throws TemplateException, IOException {
+		String key = null;
+		long ttl = DEFAULT_TTL;
+		for (Object o:params.entrySet())
+		{
+			final Map.Entry e = (Map.Entry)o;
+			final String name = (String)e.getKey();
+			final TemplateModel value = (TemplateModel)e.getValue();
+			if (name.equals("key"))
+				key = valueToString(value);
+			else if (name.equals("ttl") && value instanceof TemplateNumberModel)
+				ttl = ((TemplateNumberModel)value).getAsNumber().longValue();
+			else
+				throw new TemplateModelException("cache: unsupported parameter '" + name + "'");
+		}
+		if (key == null)
+			throw new TemplateModelException("cache: the 'key' parameter is required");
+		if (body == null)
+			return;
+		
+		// scope keys to the template containing the directive, so templates can't collide
+		final String scopedKey = env.getCurrentTemplate().getName() + '\0' + key;
+		final long now = System.currentTimeMillis();
+		Fragment f;
+		synchronized (this) {
+			f = _fragments.get(scopedKey);
+			if (f != null && f.mExpires <= now)
+			{
+				_fragments.remove(scopedKey);
+				f = null;
+			}
+			if (f != null)
+				_hits++;
+			else
+				_misses++;
+		}
+		
+		if (f == null)
+		{
+			// render outside the lock, concurrent misses may both render which is harmless
+			final StringWriter sw = new StringWriter();
+			body.render(sw);
+			f = new Fragment(sw.toString(), now + ttl * 1000);
+			synchronized (this) {
+				_fragments.put(scopedKey, f);
+			}
+		}
+		env.getOut().write(f.mOutput);
+	}
+	
+	private static String valueToString(TemplateModel value) throws TemplateModelException {
+		if (value instanceof TemplateScalarModel)
+			return ((TemplateScalarModel)value).getAsString();
+		if (value instanceof TemplateNumberModel)
+			return ((TemplateNumberModel)value).getAsNumber().toString();
+		throw new TemplateModelException("cache: 'key' must be a string or number");
+	}
+	
+	/**
+	 * Remove all fragments, for example after the data they show changes.
+	 */
+	public synchronized void clear() {
+		_fragments.clear();
+	}
+	
+	public synchronized int getEntryCount() {
+		return _fragments.size();
+	}
+	
+	public synchronized long getHits() {
+		return _hits;
+	}
+	
+	public synchronized long getMisses() {
+		return _misses;
+	}
+}
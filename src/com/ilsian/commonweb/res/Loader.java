@@ -1,12 +1,127 @@
 package com.ilsian.commonweb.res;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Logger;
+
 import freemarker.cache.ClassTemplateLoader;
+import freemarker.cache.MruCacheStorage;
 import freemarker.cache.MultiTemplateLoader;
+import freemarker.cache.SoftCacheStorage;
+import freemarker.cache.StrongCacheStorage;
 import freemarker.cache.TemplateLoader;
 import freemarker.template.Configuration;
+import freemarker.template.DefaultMapAdapter;
 import freemarker.template.DefaultObjectWrapper;
+import freemarker.template.ObjectWrapper;
+import freemarker.template.utility.ObjectWrapperWithAPISupport;
 
 public class Loader {
+
+	static Logger logger = java.util.logging.Logger.getLogger(Loader.class.getCanonicalName());
+	
+	/**
+	 * Template caching profiles.
+	 * 
+	 * DEVELOPMENT - templates are checked for changes on every request, so edits to class
+	 * path templates show up immediately.
+	 * 
+	 * PRODUCTION - templates are never checked for changes (they live in the JAR), and
+	 * localized lookup is off so each template is found with a single probe.  Templates are
+	 * kept in an MRU cache which holds a fixed number strongly and more softly.
+	 * 
+	 * Both profiles count template cache hits and misses; see getCacheStatistics.
+	 */
+	public enum Profile { DEVELOPMENT, PRODUCTION };
+	
+	public static final int DEFAULT_STRONG_TEMPLATES = 250;	// templates held strongly in production
+	public static final int DEFAULT_SOFT_TEMPLATES = 1000;		// templates held softly in production
+	
+	// custom attribute of our configurations, holding the TemplateSource list they load from
+	static final String TEMPLATE_SOURCES_ATTR = "com.ilsian.commonweb.res.Loader.sources";
+	// custom attribute of our configurations, holding the published asset bundle URLs
+	static final String PUBLISHED_BUNDLES_ATTR = "com.ilsian.commonweb.res.Loader.bundles";
+	
+	/**
+	 * A class path location templates are loaded from, recorded so they can be enumerated.
+	 */
+	static class TemplateSource {
+		final Class<?> mClass;		// class who shares a path with the templates
+		final String mPrefix;		// template path relative to the class package
+		
+		TemplateSource(Class<?> c, String prefix) {
+			mClass = c;
+			mPrefix = prefix;
+		}
+	}
+
+	// common stylesheets and scripts, in the order CommonJsCss.ftl includes them
+	public static final String [] COMMON_CSS = { 
+		"bootstrap3.min.css", "bootstrap-datepicker3.min.css", "jquery-confirm.min.css", "extbootstrap.css" };
+	public static final String [] COMMON_JS = { 
+		"jquery-min.js", "bootstrap3.min.js", "bootstrap-datepicker3.min.js", "jquery.loadtemplate.min.js",
+		"jquery-confirm.min.js", "jquery.ui.widget.js", "jquery.iframe-transport.js", "jquery.fileupload.js" };
+	
+	public static final String COMMON_CSS_BUNDLE = "common.css";	// logical name of the common stylesheet bundle
+	public static final String COMMON_JS_BUNDLE = "common.js";		// logical name of the common script bundle
+	// preload marker for the common assets, resolved to the bundles or files as pages are served
+	public static final String COMMON_ASSETS = "::common";
+	
+	/**
+	 * Create the fingerprinted bundles of the common stylesheets and scripts.
+	 * @return The css and js bundles, in that order
+	 * @throws IOException
+	 */
+	public static AssetBundle [] createCommonBundles() throws IOException {
+		return new AssetBundle [] {
+				new AssetBundle("common", "css", Loader.class, COMMON_CSS),
+				new AssetBundle("common", "js", Loader.class, COMMON_JS)
+		};
+	}
+	
+	/**
+	 * Get the URLs of the common stylesheets and scripts, as CommonJsCss.ftl would include
+	 * them: the bundles when they are published, otherwise the individual files.  As bundles
+	 * may be published later, servlets should preload COMMON_ASSETS rather than these URLs.
+	 * @param c Configuration the templates are rendered with
+	 * @return Asset URLs, stylesheets first
+	 */
+	public static String [] getCommonAssetUrls(Configuration c) {
+		final Map<String, String> published = getPublishedBundles(c);
+		final List<String> urls = new ArrayList<String>();
+		final String css = published.get(COMMON_CSS_BUNDLE);
+		if (css != null)
+			urls.add(css);
+		else
+			for (String r:COMMON_CSS)
+				urls.add(AssetBundle.DEFAULT_URL_PREFIX + r);
+		
+		final String js = published.get(COMMON_JS_BUNDLE);
+		if (js != null)
+			urls.add(js);
+		else
+			for (String r:COMMON_JS)
+				urls.add(AssetBundle.DEFAULT_URL_PREFIX + r);
+		return urls.toArray(new String[urls.size()]);
+	}
 	
 	public static Configuration createTemplateLoader(Class appClass, String prefix) {
 		
@@ -18,7 +133,41 @@ public class Loader {
 				});
 
 		c.setTemplateLoader(mtl);
-		c.setObjectWrapper(new DefaultObjectWrapper());
+		c.setCustomAttribute(TEMPLATE_SOURCES_ATTR, new TemplateSource [] { 
+				new TemplateSource(appClass, prefix), new TemplateSource(Loader.class, "ftl") });
+		setupConfiguration(c);
+		return c;
+	}
+	
+	/**
+	 * Create a template loader for the app's FTL files and the core FTL files, optionally
+	 * parsing every template up front.
+	 * @param appClass Class who shares a path with the app's templates
+	 * @param prefix Path of the app's templates, relative to the class package
+	 * @param eager True to precompile all templates before returning
+	 * @return The configuration
+	 * @throws IOException If any template fails to parse
+	 */
+	public static Configuration createTemplateLoader(Class appClass, String prefix, boolean eager) throws IOException {
+		return createTemplateLoader(appClass, prefix, null, eager);
+	}
+	
+	/**
+	 * Create a template loader for the app's FTL files and the core FTL files, with a
+	 * caching profile and optionally parsing every template up front.
+	 * @param appClass Class who shares a path with the app's templates
+	 * @param prefix Path of the app's templates, relative to the class package
+	 * @param profile Caching profile, or null for Freemarker's defaults
+	 * @param eager True to precompile all templates before returning
+	 * @return The configuration
+	 * @throws IOException If any template fails to parse
+	 */
+	public static Configuration createTemplateLoader(Class appClass, String prefix, Profile profile, boolean eager) throws IOException {
+		final Configuration c = createTemplateLoader(appClass, prefix);
+		if (profile != null)
+			applyProfile(c, profile);
+		if (eager)
+			precompileTemplates(c);
 		return c;
 	}
 	
@@ -27,7 +176,262 @@ public class Loader {
 		// create a single template loader to load the core FTL files
 		final Configuration c = new Configuration();
 		c.setTemplateLoader(new ClassTemplateLoader(Loader.class, "ftl"));
-		c.setObjectWrapper(new DefaultObjectWrapper());
+		c.setCustomAttribute(TEMPLATE_SOURCES_ATTR, new TemplateSource [] { new TemplateSource(Loader.class, "ftl") });
+		setupConfiguration(c);
 		return c;
 	}
+	
+	/**
+	 * Create a template loader for the core FTL files with a caching profile
+	 * @param profile Caching profile
+	 * @return The configuration
+	 */
+	public static Configuration createTemplateLoader(Profile profile) {
+		final Configuration c = createTemplateLoader();
+		applyProfile(c, profile);
+		return c;
+	}
+	
+	/**
+	 * Apply a caching profile to a configuration, with the default production cache sizes.
+	 * This clears the template cache.
+	 * @param c Configuration
+	 * @param profile Caching profile
+	 */
+	public static void applyProfile(Configuration c, Profile profile) {
+		applyProfile(c, profile, DEFAULT_STRONG_TEMPLATES, DEFAULT_SOFT_TEMPLATES);
+	}
+	
+	/**
+	 * Apply a caching profile to a configuration.  This clears the template cache.
+	 * @param c Configuration
+	 * @param profile Caching profile
+	 * @param strongSize Templates held strongly in production, which should cover all templates
+	 * that are regularly served
+	 * @param softSize Templates held softly in production, beyond the strong ones
+	 */
+	public static void applyProfile(Configuration c, Profile profile, int strongSize, int softSize) {
+		if (profile == Profile.PRODUCTION)
+		{
+			c.setTemplateUpdateDelayMilliseconds(Long.MAX_VALUE);
+			c.setLocalizedLookup(false);
+			c.setCacheStorage(new TemplateCacheStatistics(new MruCacheStorage(strongSize, softSize)));
+		}
+		else
+		{
+			c.setTemplateUpdateDelayMilliseconds(0);
+			c.setCacheStorage(new TemplateCacheStatistics(new SoftCacheStorage()));
+		}
+	}
+	
+	/**
+	 * Get the template cache statistics of a configuration
+	 * @param c Configuration
+	 * @return Statistics, or null if no profile was applied to the configuration
+	 */
+	public static TemplateCacheStatistics getCacheStatistics(Configuration c) {
+		return c.getCacheStorage() instanceof TemplateCacheStatistics ? (TemplateCacheStatistics)c.getCacheStorage() : null;
+	}
+	
+	/**
+	 * Parse every template a configuration created by this Loader can find, in parallel,
+	 * so no request pays for the parse.  Parsed templates are pinned in the template cache:
+	 * a default (soft reference) cache storage is replaced by a strong one, other storage
+	 * (such as a profile's) is left as configured and should be sized to hold all templates.
+	 * @param c Configuration created by createTemplateLoader
+	 * @return The number of templates parsed
+	 * @throws IOException If any template fails to parse, which stops all parsing
+	 */
+	public static int precompileTemplates(final Configuration c) throws IOException {
+		final TemplateSource [] sources = (TemplateSource[])c.getCustomAttribute(TEMPLATE_SOURCES_ATTR);
+		if (sources == null)
+		{
+			logger.warning("Loader: configuration has no known template sources, nothing to precompile");
+			return 0;
+		}
+		
+		// templates found in several sources are only loaded from the first, so parse them once
+		final Set<String> names = new TreeSet<String>();
+		for (TemplateSource src:sources)
+		{
+			final List<String> found = src.mPrefix.startsWith("/") ? null : listResources(src.mClass, src.mPrefix, true);
+			if (found == null)
+			{
+				logger.warning(String.format("Loader: cannot enumerate templates of %s at '%s'", src.mClass.getName(), src.mPrefix));
+				continue;
+			}
+			for (String name:found)
+			{
+				if (name.endsWith(".ftl"))
+					names.add(name);
+			}
+		}
+		
+		if (c.getCacheStorage() instanceof SoftCacheStorage)
+			c.setCacheStorage(new StrongCacheStorage());
+		
+		final long start = System.nanoTime();
+		final ForkJoinPool pool = new ForkJoinPool(Math.min(Math.max(names.size(), 1), Runtime.getRuntime().availableProcessors()));
+		try {
+			final ExecutorCompletionService<String> ecs = new ExecutorCompletionService<String>(pool);
+			for (final String name:names)
+			{
+				ecs.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						final long t0 = System.nanoTime();
+						c.getTemplate(name);
+						logger.fine(String.format("Loader: parsed %s in %.1f ms", name, (System.nanoTime() - t0) / 1e6));
+						return name;
+					}
+				});
+			}
+			// take results as they complete, so the first failure stops the rest
+			for (int i=0;i<names.size();i++)
+				ecs.take().get();
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			throw new IOException("Template precompile failed: " + cause.getMessage(), cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Template precompile interrupted");
+		} finally {
+			pool.shutdownNow();
+		}
+		
+		logger.info(String.format("Loader: precompiled %d templates in %d ms", names.size(), (System.nanoTime() - start) / 1000000));
+		return names.size();
+	}
+	
+	/**
+	 * Common setup for all template configurations.
+	 * @param c Configuration to setup
+	 */
+	private static void setupConfiguration(Configuration c) {
+		final DefaultObjectWrapper ow = new DefaultObjectWrapper();
+		c.setObjectWrapper(ow);
+		c.setOutputEncoding("UTF-8");
+		setPublishedBundles(c, new ConcurrentHashMap<String, String>());
+		c.setSharedVariable("cache", new FragmentCacheDirective());
+	}
+	
+	/**
+	 * Set the published asset bundles a configuration's templates see as 'assetBundles'.
+	 * Servlets of one web server bind their configurations to the same map, so bundles
+	 * published by its StaticResourceServlet are seen by all of its templates and by no
+	 * other server's.  Any configuration may be bound, not only those created here.
+	 * @param c Configuration
+	 * @param published Bundle URLs by logical name, a live and thread safe map
+	 */
+	public static void setPublishedBundles(Configuration c, Map<String, String> published) {
+		final ObjectWrapper ow = c.getObjectWrapper();
+		// live view, so bundles published after the configuration is bound are still seen
+		c.setSharedVariable("assetBundles", DefaultMapAdapter.adapt(published, 
+				ow instanceof ObjectWrapperWithAPISupport ? (ObjectWrapperWithAPISupport)ow : new DefaultObjectWrapper()));
+		c.setCustomAttribute(PUBLISHED_BUNDLES_ATTR, published);
+	}
+	
+	/**
+	 * Get the asset bundles published to a configuration's templates
+	 * @param c Configuration
+	 * @return Live, read-only view of the bundle URLs by logical name, empty if the
+	 * configuration has none
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, String> getPublishedBundles(Configuration c) {
+		final Object published = c.getCustomAttribute(PUBLISHED_BUNDLES_ATTR);
+		return published instanceof Map ? Collections.unmodifiableMap((Map<String, String>)published) : Collections.<String, String>emptyMap();
+	}
+	
+	/**
+	 * Get the fragment cache of a configuration, for statistics or clearing
+	 * @param c Configuration created by createTemplateLoader
+	 * @return The '<@cache>' directive, or null if the configuration doesn't have one
+	 */
+	public static FragmentCacheDirective getFragmentCache(Configuration c) {
+		final Object model = c.getSharedVariable("cache");
+		return model instanceof FragmentCacheDirective ? (FragmentCacheDirective)model : null;
+	}
+	
+	/**
+	 * List the resources that share a class path with a class, whether the class was loaded
+	 * from a directory or a JAR.
+	 * @param c Class who shares a path with the resources
+	 * @param subPath Path relative to the class package, or null for the package itself
+	 * @return Names of the resources found directly within the path, or null if the class
+	 * was loaded from a location that cannot be listed
+	 * @throws IOException
+	 */
+	public static List<String> listResources(Class<?> c, String subPath) throws IOException {
+		return listResources(c, subPath, false);
+	}
+	
+	/**
+	 * List the resources that share a class path with a class, whether the class was loaded
+	 * from a directory or a JAR.
+	 * @param c Class who shares a path with the resources
+	 * @param subPath Path relative to the class package, or null for the package itself
+	 * @param recursive True to include resources in sub-directories, named by relative path
+	 * @return Names of the resources found within the path, or null if the class was loaded
+	 * from a location that cannot be listed
+	 * @throws IOException
+	 */
+	public static List<String> listResources(Class<?> c, String subPath, boolean recursive) throws IOException {
+		final String className = c.getName().substring(c.getName().lastIndexOf('.') + 1);
+		final URL self = c.getResource(className + ".class");
+		if (self == null)
+			return null;
+		
+		final List<String> names = new ArrayList<String>();
+		if ("file".equals(self.getProtocol()))
+		{
+			File dir;
+			try {
+				dir = new File(self.toURI()).getParentFile();
+			} catch (URISyntaxException e) {
+				return null;
+			}
+			if (subPath != null)
+				dir = new File(dir, subPath);
+			listFiles(dir, "", recursive, names);
+			return names;
+		}
+		
+		final URLConnection conn = self.openConnection();
+		if (conn instanceof JarURLConnection)
+		{
+			// the JAR is shared through the URL cache, so it is not closed here
+			final JarURLConnection jconn = (JarURLConnection)conn;
+			final String entry = jconn.getEntryName();
+			String prefix = entry.substring(0, entry.lastIndexOf('/') + 1);
+			if (subPath != null)
+				prefix = prefix + subPath + "/";
+			
+			final JarFile jar = jconn.getJarFile();
+			final Enumeration<JarEntry> entries = jar.entries();
+			while (entries.hasMoreElements())
+			{
+				final JarEntry je = entries.nextElement();
+				final String name = je.getName();
+				if (!je.isDirectory() && name.startsWith(prefix) && (recursive || name.indexOf('/', prefix.length()) < 0))
+					names.add(name.substring(prefix.length()));
+			}
+			return names;
+		}
+		return null;
+	}
+	
+	// add the files of a directory, and optionally its sub-directories, to a list of names
+	private static void listFiles(File dir, String relPath, boolean recursive, List<String> names) {
+		final File [] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File f:files)
+		{
+			if (f.isFile())
+				names.add(relPath + f.getName());
+			else if (recursive && f.isDirectory())
+				listFiles(f, relPath + f.getName() + "/", true, names);
+		}
+	}
 }
@@ -0,0 +1,94 @@
+package com.ilsian.commonweb.res;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import freemarker.cache.CacheStorage;
+import freemarker.cache.CacheStorageWithGetSize;
+import freemarker.cache.ConcurrentCacheStorage;
+import freemarker.cache.MruCacheStorage;
+
+/**
+ * TemplateCacheStatistics - A template cache storage which counts the lookups made by
+ * Freemarker's template cache, delegating the actual storage to another implementation.
+ * A hit is a lookup satisfied by the cache; a miss means the template had to be located
+ * and parsed.
+ * @author justin
+ *
+ */
+public class TemplateCacheStatistics implements ConcurrentCacheStorage, CacheStorageWithGetSize {
+
+	private final CacheStorage _storage;	// where templates are actually kept
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+	
+	/**
+	 * Constructor.  Count lookups of a cache storage.
+	 * @param storage The storage to delegate to
+	 */
+	public TemplateCacheStatistics(CacheStorage storage) {
+		_storage = storage;
+	}
+	
+	@Override
+	public Object get(Object key) {
+		final Object value = _storage.get(key);
+		if (value != null)
+			_hits.incrementAndGet();
+		else
+			_misses.incrementAndGet();
+		return value;
+	}
+	
+	@Override
+	public void put(Object key, Object value) {
+		_storage.put(key, value);
+	}
+	
+	@Override
+	public void remove(Object key) {
+		_storage.remove(key);
+	}
+	
+	@Override
+	public void clear() {
+		_storage.clear();
+	}
+	
+	/**
+	 * The template cache synchronizes on this object unless the delegate is concurrent.
+	 */
+	@Override
+	public boolean isConcurrent() {
+		return _storage instanceof ConcurrentCacheStorage && ((ConcurrentCacheStorage)_storage).isConcurrent();
+	}
+	
+	/**
+	 * @return The number of cached templates, or -1 if the delegate can't tell
+	 */
+	@Override
+	public int getSize() {
+		return _storage instanceof CacheStorageWithGetSize ? ((CacheStorageWithGetSize)_storage).getSize() : -1;
+	}
+	
+	/**
+	 * @return The number of strongly held templates, or -1 if the delegate is not an MRU storage
+	 */
+	public int getStrongSize() {
+		return _storage instanceof MruCacheStorage ? ((MruCacheStorage)_storage).getStrongSize() : -1;
+	}
+	
+	/**
+	 * @return The storage lookups are counted for
+	 */
+	public CacheStorage getStorage() {
+		return _storage;
+	}
+	
+	public long getHits() {
+		return _hits.get();
+	}
+	
+	public long getMisses() {
+		return _misses.get();
+	}
+}
@@ -1,8 +1,17 @@
+<#if (assetBundles["common.css"])??>
+<!-- Common CSS -->
+<link rel="stylesheet" type="text/css" href="${assetBundles["common.css"]}" />
+<#else>
 <!-- Common CSS -->
 <link rel="stylesheet" type="text/css" href="/res/bootstrap3.min.css" />
 <link rel="stylesheet" type="text/css" href="/res/bootstrap-datepicker3.min.css" />
 <link rel="stylesheet" type="text/css" href="/res/jquery-confirm.min.css" />
 <link rel="stylesheet" type="text/css" href="/res/extbootstrap.css" />
+</#if>
+<#if (assetBundles["common.js"])??>
+<!-- Common Javascript -->
+<script type="text/javascript" src="${assetBundles["common.js"]}"></script>
+<#else>
 <!-- Common Javascript -->
 <script type="text/javascript" src="/res/jquery-min.js"></script>
 <script type="text/javascript" src="/res/bootstrap3.min.js"></script>
@@ -12,3 +21,4 @@
 <script type="text/javascript" src="/res/jquery.ui.widget.js"></script>
 <script type="text/javascript" src="/res/jquery.iframe-transport.js"></script>
 <script type="text/javascript" src="/res/jquery.fileupload.js"></script>
+</#if>
@@ -12,6 +12,8 @@ import javax.naming.directory.SearchResult;
 import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
 
+import com.ilsian.tomcat.FlightEvents;
+
 public class LDAPManager {
     
     private final String _url;
@@ -57,7 +59,7 @@ public class LDAPManager {
     public String getDN(String userID) throws NamingException
     {
         Hashtable<String, Object> env = getEnv(_adminDN, null);
-        LdapContext ctx = new InitialLdapContext(env, null);
+        LdapContext ctx = bindAdmin(env);
         SearchResult r = findAccountByUserID(ctx, _adminDN, userID);
         return r.getNameInNamespace();
     }
@@ -75,7 +77,7 @@ public class LDAPManager {
         Hashtable<String, Object> env = getEnv(_adminDN, null);
         LdapContext ctx;
         try {
-            ctx = new InitialLdapContext(env, null);
+            ctx = bindAdmin(env);
             return verifyUser(ctx, _adminDN, userID, userPW);
         } catch (NamingException e) {
             e.printStackTrace();
@@ -91,13 +93,34 @@ public class LDAPManager {
         }
         String dn = r.getNameInNamespace();
         Hashtable<String, Object> userEnv = getEnv(dn, userPW);
+        final Object evt = FlightEvents.LDAP_BIND.begin();
+        boolean bound = false;
         try {
             new InitialDirContext(userEnv);
+            bound = true;
         } catch (NamingException e) {
             return false;
+        } finally {
+            if (evt != null)
+                FlightEvents.LDAP_BIND.commit(evt, _url, dn, bound);
         }
         return true;
     }
+
+    // bind as the admin, recorded as a flight event
+    private LdapContext bindAdmin(Hashtable<String, Object> env) throws NamingException
+    {
+        final Object evt = FlightEvents.LDAP_BIND.begin();
+        boolean bound = false;
+        try {
+            final LdapContext ctx = new InitialLdapContext(env, null);
+            bound = true;
+            return ctx;
+        } finally {
+            if (evt != null)
+                FlightEvents.LDAP_BIND.commit(evt, _url, _adminDN, bound);
+        }
+    }
     
     private SearchResult findAccountByUserID(DirContext ctx, String ldapSearchBase, String userID) throws NamingException
     {
@@ -0,0 +1,490 @@
+package com.ilsian.tomcat;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * AdmissionLimiter - Limits how many requests of a route run at once, so one overloaded
+ * route can't take every container thread.  Requests beyond the limit wait in a short,
+ * bounded queue; when the queue is full (or the wait times out) they are rejected at once
+ * with 503 and a Retry-After header, rather than waiting in the connector's accept queue.
+ *
+ * Waiting requests are admitted in arrival order, and a new request never takes a slot
+ * while others are waiting.  Where the servlet supports async, a waiting request is parked
+ * with startAsync and gives its container thread back; once admitted it runs on a container
+ * thread from AsyncContext.start.  Otherwise the calling thread waits.  The container checks
+ * parked requests for timeouts about once a second, so short queue timeouts are not exact.
+ *
+ * A fixed limiter keeps the same limit.  An adaptive limiter adjusts it AIMD style: while
+ * requests complete within the target latency and the limit is in use it grows by about
+ * one per limit's worth of requests, and when a request is slower than the target (or
+ * fails) it shrinks by a fraction, at most once per target interval.
+ *
+ * Requests handled asynchronously (AsyncActionHandler) hold their admission until the
+ * async response completes.
+ *
+ * @author justin
+ *
+ */
+public class AdmissionLimiter {
+
+	static Logger logger = java.util.logging.Logger.getLogger(AdmissionLimiter.class.getCanonicalName());
+
+	public static final int DEFAULT_RETRY_AFTER = 1;		// seconds
+	public static final double BACKOFF_RATIO = 0.9;		// adaptive decrease factor
+	
+	private final boolean _adaptive;
+	private final int _minLimit;
+	private final int _maxLimit;
+	private final int _maxQueue;			// requests allowed to wait for admission
+	private final long _queueTimeout;		// milliseconds a request may wait
+	private final long _targetNanos;		// adaptive latency target
+	private int _retryAfter = DEFAULT_RETRY_AFTER;
+	
+	private double _limit;					// current limit
+	private int _inFlight = 0;
+	private final ArrayDeque<Waiter> _waiting = new ArrayDeque<Waiter>();	// in arrival order
+	private long _lastDecrease = 0;
+	private long _accepted = 0;
+	private long _rejected = 0;
+	
+	private AdmissionLimiter(boolean adaptive, int initial, int min, int max, int maxQueue, long queueTimeout, long targetMillis) {
+		_adaptive = adaptive;
+		_limit = initial;
+		_minLimit = min;
+		_maxLimit = max;
+		_maxQueue = maxQueue;
+		_queueTimeout = queueTimeout;
+		_targetNanos = targetMillis * 1000000L;
+	}
+	
+	/**
+	 * Create a limiter with a fixed limit
+	 * @param maxConcurrent Requests run at once
+	 * @param maxQueue Requests allowed to wait for admission
+	 * @param queueTimeout Milliseconds a request may wait before being rejected
+	 * @return The limiter
+	 */
+	public static AdmissionLimiter fixed(int maxConcurrent, int maxQueue, long queueTimeout) {
+		return new AdmissionLimiter(false, maxConcurrent, maxConcurrent, maxConcurrent, maxQueue, queueTimeout, 0);
+	}
+	
+	/**
+	 * Create a limiter which adapts its limit to keep latency under a target
+	 * @param initial Initial limit
+	 * @param min Lowest limit
+	 * @param max Highest limit
+	 * @param targetMillis Latency target in milliseconds
+	 * @param maxQueue Requests allowed to wait for admission
+	 * @param queueTimeout Milliseconds a request may wait before being rejected
+	 * @return The limiter
+	 */
+	public static AdmissionLimiter adaptive(int initial, int min, int max, long targetMillis, int maxQueue, long queueTimeout) {
+		return new AdmissionLimiter(true, initial, min, max, maxQueue, queueTimeout, targetMillis);
+	}
+	
+	/**
+	 * Set the Retry-After sent with rejections
+	 * @param seconds Seconds clients should wait
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public AdmissionLimiter setRetryAfter(int seconds) {
+		_retryAfter = seconds;
+		return this;
+	}
+	
+	/**
+	 * Wrap a handler so its requests are admitted by this limiter
+	 * @param handler The handler
+	 * @return The limited handler
+	 */
+	public ActionHandler wrap(final ActionHandler handler) {
+		return new ActionHandler() {
+			@Override
+			public void handleAction(String action, UserInfo user, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+				execute(handler, action, user, request, response);
+			}
+		};
+	}
+	
+	/**
+	 * Run a handler if the request is admitted, otherwise reject it with 503.  A request
+	 * which has to wait may be parked, in which case this returns before the handler runs.
+	 */
+	public void execute(ActionHandler handler, String action, UserInfo user, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (!tryAcquire())
+		{
+			if (request.isAsyncSupported() && !request.isAsyncStarted())
+			{
+				park(handler, action, user, request, response);
+				return;
+			}
+			if (!await())
+			{
+				reject(response);
+				return;
+			}
+		}
+		
+		final long start = System.nanoTime();
+		boolean ok = false;
+		try {
+			handler.handleAction(action, user, request, response);
+			ok = true;
+		} finally {
+			if (ok && request.isAsyncStarted())
+				releaseOnComplete(request.getAsyncContext(), start);
+			else
+				release(System.nanoTime() - start, ok);
+		}
+	}
+	
+	private void reject(HttpServletResponse response) throws IOException {
+		response.setHeader("Retry-After", Integer.toString(_retryAfter));
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server busy, retry later");
+	}
+	
+	// still running, hold admission until the response completes
+	private void releaseOnComplete(AsyncContext ctx, final long start) {
+		ctx.addListener(new AsyncListener() {
+			@Override
+			public void onComplete(AsyncEvent event) {
+				release(System.nanoTime() - start, true);
+			}
+			
+			@Override
+			public void onTimeout(AsyncEvent event) {
+			}
+			
+			@Override
+			public void onError(AsyncEvent event) {
+			}
+			
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
+		});
+	}
+	
+	// queue the request without holding its thread, rejecting it if the queue is full
+	private void park(ActionHandler handler, String action, UserInfo user, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		final AsyncContext ctx = request.startAsync(request, response);
+		ctx.setTimeout(_queueTimeout);
+		final Waiter w = new Waiter(handler, action, user, ctx);
+		ctx.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (withdraw(w, true))
+				{
+					reject((HttpServletResponse)ctx.getResponse());
+					ctx.complete();
+				}
+				else if (abandon(w))
+				{
+					// admitted as the timeout fired, before it could run
+					release(0, false);
+					reject((HttpServletResponse)ctx.getResponse());
+					ctx.complete();
+				}
+			}
+			
+			@Override
+			public void onError(AsyncEvent event) {
+				// client went away, don't hold a place for it
+				if (withdraw(w, false))
+					ctx.complete();
+				else if (abandon(w))
+				{
+					release(0, false);
+					ctx.complete();
+				}
+			}
+			
+			@Override
+			public void onComplete(AsyncEvent event) {
+			}
+			
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
+		});
+		
+		final boolean admitted;
+		synchronized (this) {
+			if (_waiting.isEmpty() && _inFlight < (int)_limit)
+			{
+				// a slot was freed meanwhile
+				_inFlight++;
+				_accepted++;
+				w.mAdmitted = true;
+				ctx.setTimeout(0);
+				admitted = true;
+			}
+			else if (_waiting.size() >= _maxQueue)
+			{
+				_rejected++;
+				admitted = false;
+			}
+			else
+			{
+				_waiting.add(w);
+				return;
+			}
+		}
+		if (admitted)
+			w.start();
+		else
+		{
+			reject(response);
+			ctx.complete();
+		}
+	}
+	
+	// admit at once if a slot is free and nobody is waiting
+	private synchronized boolean tryAcquire() {
+		if (!_waiting.isEmpty() || _inFlight >= (int)_limit)
+			return false;
+		_inFlight++;
+		_accepted++;
+		return true;
+	}
+	
+	// wait on this thread for admission, false if rejected
+	private synchronized boolean await() {
+		if (tryAcquire())
+			return true;
+		if (_waiting.size() >= _maxQueue)
+		{
+			_rejected++;
+			return false;
+		}
+		
+		final Waiter w = new Waiter(null, null, null, null);
+		_waiting.add(w);
+		try {
+			final long deadline = System.currentTimeMillis() + _queueTimeout;
+			long remaining = _queueTimeout;
+			while (!w.mAdmitted && remaining > 0)
+			{
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return w.mAdmitted || !withdraw(w, true);
+	}
+	
+	// remove a request which gave up waiting, false if it was already admitted
+	private synchronized boolean withdraw(Waiter w, boolean rejected) {
+		if (w.mAdmitted || !_waiting.remove(w))
+			return false;
+		if (rejected)
+			_rejected++;
+		return true;
+	}
+	
+	// give up an admitted parked request which has not started, false if it has
+	private synchronized boolean abandon(Waiter w) {
+		if (!w.mAdmitted || w.mRunning)
+			return false;
+		w.mAdmitted = false;
+		return true;
+	}
+	
+	// start running an admitted parked request, false if it was abandoned
+	private synchronized boolean claim(Waiter w) {
+		if (!w.mAdmitted)
+			return false;
+		w.mRunning = true;
+		return true;
+	}
+	
+	// end of an admitted request, adapting the limit to its outcome
+	private void release(long nanos, boolean ok) {
+		final List<Waiter> parked = new ArrayList<Waiter>();
+		synchronized (this) {
+			final boolean saturated = _inFlight >= (int)_limit || !_waiting.isEmpty();
+			_inFlight--;
+			if (_adaptive)
+			{
+				if (!ok || nanos > _targetNanos)
+				{
+					final long now = System.nanoTime();
+					if (now - _lastDecrease > _targetNanos)
+					{
+						_limit = Math.max(_minLimit, _limit * BACKOFF_RATIO);
+						_lastDecrease = now;
+					}
+				}
+				else if (saturated)
+					_limit = Math.min(_maxLimit, _limit + 1.0 / _limit);
+			}
+			
+			// hand every free slot to the oldest waiters, the limit may have grown
+			boolean wake = false;
+			while (_inFlight < (int)_limit && !_waiting.isEmpty())
+			{
+				final Waiter w = _waiting.poll();
+				w.mAdmitted = true;
+				_inFlight++;
+				_accepted++;
+				if (w.mContext != null)
+				{
+					// the queue timeout no longer applies
+					w.mContext.setTimeout(0);
+					parked.add(w);
+				}
+				else
+					wake = true;
+			}
+			if (wake)
+				notifyAll();
+		}
+		for (Waiter w:parked)
+			w.start();
+	}
+	
+	public synchronized int getLimit() {
+		return (int)_limit;
+	}
+	
+	public synchronized int getInFlight() {
+		return _inFlight;
+	}
+	
+	public synchronized int getQueued() {
+		return _waiting.size();
+	}
+	
+	public synchronized long getAccepted() {
+		return _accepted;
+	}
+	
+	public synchronized long getRejected() {
+		return _rejected;
+	}
+	
+	public boolean isAdaptive() {
+		return _adaptive;
+	}
+	
+	/**
+	 * A request waiting for admission, either parked (with an async context) or waiting
+	 * on its own thread.
+	 */
+	private class Waiter {
+		final ActionHandler mHandler;
+		final String mAction;
+		final UserInfo mUser;
+		final AsyncContext mContext;	///< null when the thread waits
+		boolean mAdmitted = false;		///< guarded by the limiter
+		boolean mRunning = false;		///< guarded by the limiter, set once a parked request starts
+		
+		Waiter(ActionHandler handler, String action, UserInfo user, AsyncContext ctx) {
+			mHandler = handler;
+			mAction = action;
+			mUser = user;
+			mContext = ctx;
+		}
+		
+		// run an admitted parked request on a container thread
+		void start() {
+			try {
+				mContext.start(new Runnable() {
+					@Override
+					public void run() {
+						if (claim(Waiter.this))
+							runHandler();
+					}
+				});
+			} catch (IllegalStateException e) {
+				// the request timed out or completed meanwhile
+				logger.log(Level.FINE, "Admitted request could not start", e);
+				if (abandon(this))
+					release(0, false);
+			}
+		}
+		
+		// run the handler of a claimed request, completing the context unless it continues async
+		private void runHandler() {
+			final HttpServletResponse response = (HttpServletResponse)mContext.getResponse();
+			final ParkedRequest request = new ParkedRequest((HttpServletRequest)mContext.getRequest(), mContext);
+			final long start = System.nanoTime();
+			boolean ok = false;
+			try {
+				mHandler.handleAction(mAction, mUser, request, response);
+				ok = true;
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Admitted request failed", e);
+				try {
+					if (!response.isCommitted())
+						response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				} catch (IOException ioe) {
+					logger.log(Level.FINE, "Error response failed", ioe);
+				}
+			} finally {
+				if (ok && request.mStarted)
+					releaseOnComplete(mContext, start);
+				else
+				{
+					mContext.complete();
+					release(System.nanoTime() - start, ok);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The request seen by the handler of an admitted parked request.  It is already in
+	 * async mode, so a handler continuing asynchronously (startAsync) is given the parked
+	 * context, and otherwise the context is completed once the handler returns.
+	 */
+	private static class ParkedRequest extends HttpServletRequestWrapper {
+		final AsyncContext mContext;
+		volatile boolean mStarted = false;	///< set when the handler continues asynchronously
+		
+		ParkedRequest(HttpServletRequest request, AsyncContext ctx) {
+			super(request);
+			mContext = ctx;
+		}
+		
+		@Override
+		public AsyncContext startAsync() {
+			mStarted = true;
+			return mContext;
+		}
+		
+		@Override
+		public AsyncContext startAsync(ServletRequest request, ServletResponse response) {
+			mStarted = true;
+			return mContext;
+		}
+		
+		@Override
+		public boolean isAsyncStarted() {
+			return mStarted;
+		}
+		
+		@Override
+		public AsyncContext getAsyncContext() {
+			if (!mStarted)
+				throw new IllegalStateException("Not started asynchronously");
+			return mContext;
+		}
+	}
+}
@@ -1,11 +1,23 @@
 package com.ilsian.tomcat;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
@@ -13,10 +25,13 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.ilsian.commonweb.res.Loader;
+import com.ilsian.commonweb.res.TemplateCacheStatistics;
 
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
+import freemarker.template.TemplateHashModel;
+import freemarker.template.TemplateModelException;
 
 /**
  * AppServlet - Base class for an application level servlet with support for custom
@@ -55,13 +70,33 @@ import freemarker.template.TemplateException;
  * - Files ending in JS.ftl -> 'text/javascript'
  * - Files ending in CSS.ftl -> 'text/css'
  *
+ * ASSET PRELOADING
+ * - setPreloadAssets adds a 'Link: rel=preload' header to every template page, so the
+ *   browser can fetch stylesheets and scripts before it has parsed the page.  Individual
+ *   TemplateResourceHandlers may declare their own assets instead.
+ * - setEarlyFlush commits the headers before the data model is built, so the browser
+ *   starts on the assets while a slow page is still being rendered.
+ * - Pages are rendered as UTF-8 through a StreamingTemplateWriter.  setOutputBuffer sizes
+ *   its buffer and can send each page's head as soon as it is rendered.
+ *
+ * TEMPLATE DATA
+ * - A TemplateResourceHandler's data factory is either built once, rebuilt on every request,
+ *   or given a refresh interval.  With an interval, stale data keeps being served while a
+ *   background thread rebuilds it, so slow factories don't delay requests.
+ *
+ * PAGE CACHING
+ * - TemplateResourceHandler.setPageCache keeps rendered pages for a time, keyed by the
+ *   user's security level and chosen URL params, and serves them without building the
+ *   data model.  Only pages which depend on nothing else should be cached.
+ *
  * SUBCLASS RESPONSIBILITIES
  * - AppServlet subclasses should register all handlers in their own init methods using
  * the addGetHandler, addPostHandler, addFTLHander methods.
  * - Subclasses should provide an object implementing UserSecurity and the name of the
  * routing parameter (typically 'action') during their constructor
  * - Subclasses should implement the createDataMap method to create common data bindings 
- * for their FTL resources.
+ * for their FTL resources.  Bindings that are the same for every request belong in
+ * createGlobalData instead, which is only called once.
  * 
  * @author justin
  *
@@ -71,14 +106,33 @@ public abstract class AppServlet extends HttpServlet {
 	// name for all default handlers (used in all three handlers)
 	public static final String DEFAULT_HANDLER = "::default";
 
+	static Logger logger = java.util.logging.Logger.getLogger(AppServlet.class.getCanonicalName());
+	// slow requests are logged separately, so they can be sent to their own file
+	static Logger slowLogger = java.util.logging.Logger.getLogger(AppServlet.class.getCanonicalName() + ".slow");
+	
 	protected UserSecurity _userModel;		///< User security interface
 	private String _routingParam;	///< The name of our routing param, normally 'action'
 	Configuration _templateCfg=null;///< FTL Template loading
+	PreloadLinks _preloadLinks=null;	///< Assets preloaded by template pages, or null
+	boolean _earlyFlush=false;		///< Commit headers before building the data model
+	boolean _precompile=false;		///< Parse all templates during init
+	Loader.Profile _templateProfile=null;	///< Template caching profile, or null for defaults
+	int _outputBufferSize=StreamingTemplateWriter.DEFAULT_BUFFER_SIZE;	///< Bytes of a page buffered before streaming
+	boolean _flushHead=false;		///< Send pages as soon as the head is rendered
+	volatile LayeredDataModel.GlobalModel _globalModel=null;	///< Bindings shared by all templates, built once
+	ExecutorService _refreshExecutor=null;	///< Background template data refresh, created on first use
+	MetricsRegistry _metrics=MetricsRegistry.getDefault();	///< Request metrics, or null to not record
+	long _slowRequestNanos=0;		///< Requests taking at least this long are logged, 0 for none
+	boolean _sampleAllocation=false;	///< Record the bytes each request allocates with its metrics
 	
-	// Handler maps for GET, POST, and FTL templates
-	Hashtable<String, ActionHandler> _getHandlers = new Hashtable<String, ActionHandler>();
-	Hashtable<String, ActionHandler> _postHandlers = new Hashtable<String, ActionHandler>();
-	Hashtable<String, TemplateResourceHandler> _ftlHandlers = new Hashtable<String, TemplateResourceHandler>();
+	// Handler routes for GET, POST, and FTL templates.  Tables are immutable and replaced
+	// whenever a handler is added, so requests read them without locking.
+	volatile RouteTable<ActionHandler> _getHandlers = new RouteTable<ActionHandler>();
+	volatile RouteTable<ActionHandler> _postHandlers = new RouteTable<ActionHandler>();
+	volatile RouteTable<TemplateResourceHandler> _ftlHandlers = new RouteTable<TemplateResourceHandler>();
+	
+	// admission limiters by route, e.g. 'GET report', for statistics
+	final Map<String, AdmissionLimiter> _limiters = new ConcurrentHashMap<String, AdmissionLimiter>();
 	
 	/**
 	 * Constructor
@@ -96,56 +150,364 @@ public abstract class AppServlet extends HttpServlet {
 	public void init() throws ServletException {
 		// creates a template resource loader for core and local ftl resources
 		// based on the final subclass classpath
-		_templateCfg = Loader.createTemplateLoader(this.getClass(), "ftl");
+		try {
+			_templateCfg = Loader.createTemplateLoader(this.getClass(), "ftl", _templateProfile, _precompile);
+		} catch (IOException e) {
+			throw new ServletException("Template precompile failed", e);
+		}
+		// templates see the asset bundles served by this web server
+		Loader.setPublishedBundles(_templateCfg, WebLib.getPublishedBundles(getServletContext()));
+	}
+	
+	/**
+	 * Servlet shutdown, stop any background data refreshes
+	 */
+	@Override
+	public void destroy() {
+		synchronized (this) {
+			if (_refreshExecutor != null)
+				_refreshExecutor.shutdownNow();
+			_refreshExecutor = null;
+		}
+		super.destroy();
+	}
+	
+	/**
+	 * Get the executor which refreshes template data in the background, creating it on first use
+	 * @return The executor
+	 */
+	protected synchronized ExecutorService getRefreshExecutor() {
+		if (_refreshExecutor == null)
+		{
+			_refreshExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "AppServlet-refresh");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return _refreshExecutor;
+	}
+	
+	/**
+	 * Set whether all templates are parsed when the servlet initializes, rather than on
+	 * first request.  A template with errors then fails the servlet's initialization.
+	 * Must be set before init, e.g. in the subclass constructor.
+	 * @param precompile True to precompile templates
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public AppServlet setPrecompileTemplates(boolean precompile) {
+		_precompile = precompile;
+		return this;
+	}
+	
+	/**
+	 * Set how rendered pages are buffered.  Pages that fit the buffer are sent with a
+	 * Content-Length, larger ones are streamed chunked as the buffer fills.
+	 * @param size Buffer size in bytes
+	 * @param flushHead True to send each page as soon as its '</head>' is rendered, so the
+	 * browser fetches assets while the body renders
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public AppServlet setOutputBuffer(int size, boolean flushHead) {
+		_outputBufferSize = size;
+		_flushHead = flushHead;
+		return this;
+	}
+	
+	/**
+	 * Set the template caching profile.  Must be set before init, e.g. in the subclass
+	 * constructor.
+	 * @param profile Caching profile, or null for Freemarker's defaults
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public AppServlet setTemplateProfile(Loader.Profile profile) {
+		_templateProfile = profile;
+		return this;
+	}
+	
+	/**
+	 * @return Template cache statistics, or null if no caching profile is set
+	 */
+	public TemplateCacheStatistics getTemplateCacheStatistics() {
+		return _templateCfg != null ? Loader.getCacheStatistics(_templateCfg) : null;
+	}
+	
+	/**
+	 * Set the assets preloaded by all template pages which don't declare their own.
+	 * Loader.COMMON_ASSETS preloads the common stylesheets and scripts, as bundles once
+	 * they are published.
+	 * @param urls Asset URLs, or none to stop preloading
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public AppServlet setPreloadAssets(String... urls) {
+		_preloadLinks = urls != null && urls.length > 0 ? new PreloadLinks(urls) : null;
+		return this;
+	}
+	
+	/**
+	 * Set whether template pages with preloaded assets commit their headers before the
+	 * data model is built.  Once committed, errors while building or rendering the page
+	 * can no longer change the response status.
+	 * @param early True to flush headers early
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public AppServlet setEarlyFlush(boolean early) {
+		_earlyFlush = early;
+		return this;
+	}
+	
+	/**
+	 * Set where request metrics are recorded, by default the default MetricsRegistry.
+	 * Requests are recorded under the action, path template or 'ftl:' template they are
+	 * routed to.
+	 * @param metrics The registry, or null to not record metrics
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public AppServlet setMetrics(MetricsRegistry metrics) {
+		_metrics = metrics;
+		return this;
+	}
+	
+	/**
+	 * Set whether the bytes allocated by each request are recorded with its metrics, to find
+	 * the routes causing GC pressure.  Sampling costs a little per request and needs a JVM
+	 * which counts allocation by thread (see MetricsRegistry.isAllocationSamplingSupported),
+	 * and enabling it switches that counting on for the whole JVM.  Async work after the
+	 * handler returns is not counted, and neither are requests run on virtual threads
+	 * (VirtualThreadExecutor), which the JVM doesn't count.
+	 * @param sample True to sample allocation
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public AppServlet setAllocationSampling(boolean sample) {
+		_sampleAllocation = sample && MetricsRegistry.enableAllocationSampling();
+		return this;
+	}
+	
+	/**
+	 * Log requests which take at least a threshold, with the time spent in each phase
+	 * (authentication, data, factory data, rendering and writing), the route and the
+	 * user's security level.  Slow requests are logged as warnings to the
+	 * 'com.ilsian.tomcat.AppServlet.slow' logger.  Requests which go async (including
+	 * those parked by an AdmissionLimiter) are timed until their response completes.
+	 * @param thresholdMillis Threshold in milliseconds, or 0 to not log
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public AppServlet setSlowRequestLog(long thresholdMillis) {
+		_slowRequestNanos = thresholdMillis * 1000000L;
+		return this;
 	}
 	
 	/**
 	 * Add a new handler for GET operations
 	 */
-	public void addGetHandler(String act, ActionHandler hnd) {
-		_getHandlers.put(act, hnd);
+	public synchronized void addGetHandler(String act, ActionHandler hnd) {
+		_getHandlers = _getHandlers.withName(act, hnd);
 	}
 	
 	/**
 	 * Add a new handler for POST operations
 	 */
-	public void addPostHandler(String act, ActionHandler hnd) {
-		_postHandlers.put(act, hnd);
+	public synchronized void addPostHandler(String act, ActionHandler hnd) {
+		_postHandlers = _postHandlers.withName(act, hnd);
 	}
 	
 	/**
 	 * Add a new handler for FTL Get/Post operations
 	 */
-	public void addFtlHandler(String ftlname, TemplateResourceHandler hnd) {
-		_ftlHandlers.put(ftlname, hnd);
+	public synchronized void addFtlHandler(String ftlname, TemplateResourceHandler hnd) {
+		_ftlHandlers = _ftlHandlers.withName(ftlname, hnd);
+	}
+	
+	/**
+	 * Add a new handler for GET operations, whose requests are admitted by a limiter.
+	 * Requests over the limit are rejected with 503 and a Retry-After header.
+	 */
+	public synchronized void addGetHandler(String act, ActionHandler hnd, AdmissionLimiter limiter) {
+		_limiters.put("GET " + act, limiter);
+		addGetHandler(act, limiter.wrap(hnd));
+	}
+	
+	/**
+	 * Add a new handler for POST operations, whose requests are admitted by a limiter
+	 */
+	public synchronized void addPostHandler(String act, ActionHandler hnd, AdmissionLimiter limiter) {
+		_limiters.put("POST " + act, limiter);
+		addPostHandler(act, limiter.wrap(hnd));
+	}
+	
+	/**
+	 * Add a new handler for FTL Get/Post operations, whose requests are admitted by a limiter
+	 */
+	public synchronized void addFtlHandler(String ftlname, TemplateResourceHandler hnd, AdmissionLimiter limiter) {
+		_limiters.put("FTL " + ftlname, limiter);
+		hnd._limiter = limiter;
+		addFtlHandler(ftlname, hnd);
+	}
+	
+	/**
+	 * @return A read-only view of the admission limiters by route (e.g. 'GET report'), to
+	 * report current limits and rejections
+	 */
+	public Map<String, AdmissionLimiter> getAdmissionLimiters() {
+		return Collections.unmodifiableMap(_limiters);
+	}
+	
+	/**
+	 * Add a new handler for GET requests to a path template, such as '/gui/orders/{id}'.
+	 * Paths are matched against the servlet path plus path info, so the servlet must be
+	 * mapped to a prefix (e.g. '/gui/*').  Path templates are matched before the routing
+	 * param; the handler receives the template as its action, and the values of the
+	 * variables are available through WebLib.getPathVariable.
+	 */
+	public synchronized void addGetPath(String pattern, ActionHandler hnd) {
+		_getHandlers = _getHandlers.withPath(pattern, hnd);
+	}
+	
+	/**
+	 * Add a new handler for POST requests to a path template, see addGetPath
+	 */
+	public synchronized void addPostPath(String pattern, ActionHandler hnd) {
+		_postHandlers = _postHandlers.withPath(pattern, hnd);
 	}
 	
 	/**
 	 * Create a data model for rendering an FTL template
 	 * @param user - User requesting the template page, or null if user hasn't logged in
 	 * @param request - The associated HTTP request (useful for adding Session data)
-	 * @return A data model for FTL rendering
+	 * @return A data model for FTL rendering, or null if the global data is enough
 	 */
 	public abstract HashMap createDataMap(UserInfo user, HttpServletRequest request);
 	
+	/**
+	 * Create the data bindings shared by every FTL template rendering.  Called once, when
+	 * the first template is rendered; the values are wrapped for Freemarker at that time
+	 * and later changes to them are not seen.  Request data (createDataMap) and handler
+	 * data take precedence over these.
+	 * @return Global bindings, or null for none
+	 */
+	protected HashMap createGlobalData() {
+		return null;
+	}
+	
+	/**
+	 * Get the global data model, building it on first use
+	 * @return The model
+	 * @throws IOException If a global value can't be wrapped for templates
+	 */
+	protected TemplateHashModel getGlobalModel() throws IOException
+	{
+		LayeredDataModel.GlobalModel global = _globalModel;
+		if (global == null)
+		{
+			synchronized (this) {
+				if (_globalModel == null)
+				{
+					try {
+						_globalModel = new LayeredDataModel.GlobalModel(createGlobalData(), _templateCfg.getObjectWrapper());
+					} catch (TemplateModelException e) {
+						throw new IOException("Global data error: " + e.getMessage(), e);
+					}
+				}
+				global = _globalModel;
+			}
+		}
+		return global;
+	}
+	
+	/**
+	 * Serve a request, recording its metrics under the route it is dispatched to and
+	 * tracing its phases for the slow request log
+	 */
+	@Override
+	protected void service(HttpServletRequest request, 
+			HttpServletResponse response) throws ServletException, IOException {
+		
+		final RequestTrace trace = RequestTrace.begin();
+		final Object evt = FlightEvents.DISPATCH.begin();
+		final MetricsRegistry metrics = _metrics;
+		final MeteredResponse metered = metrics != null ? new MeteredResponse(response, _sampleAllocation) : null;
+		boolean ok = false;
+		try {
+			super.service(request, metered != null ? metered : response);
+			ok = true;
+		} finally {
+			final Object attr = request.getAttribute(WebLib.ROUTE_ATTR);
+			final String route = attr != null ? attr.toString() : "none";
+			if (metrics != null)
+				metrics.complete(getServletName(), route, request, metered, ok);
+			if (ok && (evt != null || _slowRequestNanos > 0) && request.isAsyncStarted())
+			{
+				// still running, record the request once the response completes
+				final RequestTrace detached = trace.detach();
+				request.getAsyncContext().addListener(new AsyncListener() {
+					@Override
+					public void onComplete(AsyncEvent event) {
+						commitDispatch(evt, request, response, metered, route, detached);
+						logIfSlow(request, route, detached);
+					}
+					
+					@Override
+					public void onTimeout(AsyncEvent event) {
+					}
+					
+					@Override
+					public void onError(AsyncEvent event) {
+					}
+					
+					@Override
+					public void onStartAsync(AsyncEvent event) {
+					}
+				});
+			}
+			else
+			{
+				commitDispatch(evt, request, response, metered, route, trace);
+				logIfSlow(request, route, trace);
+			}
+		}
+	}
+	
+	// commit a request's flight event, if it is being recorded
+	private void commitDispatch(Object evt, HttpServletRequest request, HttpServletResponse response, MeteredResponse metered, String route, RequestTrace trace) {
+		if (evt != null)
+			FlightEvents.DISPATCH.commit(evt, getServletName(), request.getMethod(), route, trace.getUserLevel(),
+					response.getStatus(), metered != null ? metered.getBytesWritten() : -1L);
+	}
+	
+	// end a request's trace, and log the request if it was slow
+	private void logIfSlow(HttpServletRequest request, String route, RequestTrace trace) {
+		final long elapsed = trace.end();
+		if (_slowRequestNanos > 0 && elapsed >= _slowRequestNanos)
+			slowLogger.warning(String.format("Slow request %.1fms %s %s route=%s level=%d: %s", elapsed / 1e6,
+					request.getMethod(), request.getRequestURI(), route, trace.getUserLevel(), trace.formatPhases()));
+	}
+	
 	/**
 	 * doGet - Handle Web GET requests
 	 * Prioritized routing - 
 	 * (1) - No user logged in? render the login prompt via provided subclass template
 	 * (2) - Query contains 'ftl'? Render given FTL template (or the DEFAULT ftl handler if
 	 *       it is not located)
-	 * (3) - Render using getHandler matching the provided action (or the DEFAULT get handler
+	 * (3) - Render using getHandler matching a registered path template
+	 * (4) - Render using getHandler matching the provided action (or the DEFAULT get handler
 	 *       if the action is not found)
 	 */
 	protected void doGet(HttpServletRequest request, 
 			HttpServletResponse response) throws ServletException, IOException {
 		
+		final RequestTrace trace = RequestTrace.current();
+		final long start = System.nanoTime();
 		UserInfo user = _userModel.getUserInfo(request, response);
+		trace.mark(RequestTrace.Phase.AUTH, start);
 		if (user == null)
 		{
 			// no user?  model has redirected to a login page, serve nothing
 			return;
 		}
+		trace.setUserLevel(user.mLevel);
 		
 		// special handling for the 'ftl' query
 		final String ftlQ = ftlFromParam(request);
@@ -166,6 +528,9 @@ public abstract class AppServlet extends HttpServlet {
 			return;
 		}
 		
+		if (handlePathRoute(_getHandlers, user, request, response))
+			return;
+		
 		// finally, dispatch to one of our action handlers
 		final String action = request.getParameter(_routingParam);
 		handleActionGet(action, user, request, response);
@@ -180,7 +545,8 @@ public abstract class AppServlet extends HttpServlet {
 	 * (3) - Query contains 'ftl'? Render given FTL template (or the DEFAULT ftl handler if
 	 *       it is not located, for GET only - missing templates for POST responsed with an
 	 *       error: SC_NOT_FOUND)
-	 * (4) - Render using postHandler matching the provided action (or the DEFAULT get handler
+	 * (4) - Render using postHandler matching a registered path template
+	 * (5) - Render using postHandler matching the provided action (or the DEFAULT get handler
 	 *       if the action is not found - missing post handlers use the DEFAULT post handler)
 	 */
 	@Override
@@ -190,12 +556,16 @@ public abstract class AppServlet extends HttpServlet {
 		final String action = request.getParameter(_routingParam);
 		
 		// get user login info
+		final RequestTrace trace = RequestTrace.current();
+		final long start = System.nanoTime();
 		UserInfo userInfo = _userModel.getUserInfo(request, response);
+		trace.mark(RequestTrace.Phase.AUTH, start);
 		if (userInfo == null)
 		{
 			// no user?  model has redirected to a login page, serve nothing
 			return;
 		}
+		trace.setUserLevel(userInfo.mLevel);
 		
 		// special handling for the 'ftl' query on POST
 		final String ftlQ = ftlFromParam(request);
@@ -216,16 +586,44 @@ public abstract class AppServlet extends HttpServlet {
 			return;
 		}
 		
+		if (handlePathRoute(_postHandlers, userInfo, request, response))
+			return;
+		
 		handleActionPost(action, userInfo, request, response);
 	}
+	
+	/**
+	 * Dispatch a request to the handler of a matching path template, if any
+	 * @return True if a handler was found and the request handled
+	 */
+	protected boolean handlePathRoute(RouteTable<ActionHandler> routes, UserInfo user, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+	{
+		if (!routes.hasPaths())
+			return false;
+		
+		final String info = request.getPathInfo();
+		final RouteTable.Match<ActionHandler> m = routes.match(info != null ? request.getServletPath() + info : request.getServletPath());
+		if (m == null)
+			return false;
+		
+		request.setAttribute(WebLib.PATH_VARIABLES_ATTR, m.mVariables);
+		request.setAttribute(WebLib.ROUTE_ATTR, m.mPattern);
+		m.mHandler.handleAction(m.mPattern, user, request, response);
+		return true;
+	}
 	 
 	protected void handleActionGet(String action, UserInfo user, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
 	{
 		ActionHandler h = null;
+		String route = action;
 		if (action != null)
 			h = _getHandlers.get(action);
 		if (h == null)
+		{
 			h = _getHandlers.get(DEFAULT_HANDLER);
+			route = DEFAULT_HANDLER;
+		}
+		request.setAttribute(WebLib.ROUTE_ATTR, route);
 		if (h != null)
 		{
 			h.handleAction(action, user, request, response);
@@ -236,10 +634,15 @@ public abstract class AppServlet extends HttpServlet {
 	
 	protected void handleActionFTLGet(String ftl, UserInfo user, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
 	{
-		final ActionHandler h = _ftlHandlers.get(ftl);
+		final TemplateResourceHandler h = _ftlHandlers.get(ftl);
+		// an unregistered template is labelled once it loads, so the route can't be any name a client sends
+		request.setAttribute(WebLib.ROUTE_ATTR, h != null ? "ftl:" + ftl : MetricsRegistry.UNMATCHED_ROUTE);
 		if (h != null)
 		{
-			h.handleAction(ftl, user, request, response);
+			if (h._limiter != null)
+				h._limiter.execute(h, ftl, user, request, response);
+			else
+				h.handleAction(ftl, user, request, response);
 			return;
 		}
 		else
@@ -253,10 +656,15 @@ public abstract class AppServlet extends HttpServlet {
 	protected void handleActionPost(String action, UserInfo user, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
 	{
 		ActionHandler h = null;
+		String route = action;
 		if (action != null)
 			h = _postHandlers.get(action);
 		if (h == null)
+		{
 			h = _postHandlers.get(DEFAULT_HANDLER);
+			route = DEFAULT_HANDLER;
+		}
+		request.setAttribute(WebLib.ROUTE_ATTR, route);
 		if (h != null)
 		{
 			h.handleAction(action, user, request, response);
@@ -268,7 +676,18 @@ public abstract class AppServlet extends HttpServlet {
 	protected void handleActionFTLPost(String ftl, UserInfo user, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
 	{
 		final TemplateResourceHandler h = _ftlHandlers.get(ftl);
-		if (h != null)
+		request.setAttribute(WebLib.ROUTE_ATTR, h != null ? "ftl:" + ftl : MetricsRegistry.UNMATCHED_ROUTE);
+		if (h != null && h._limiter != null)
+		{
+			h._limiter.execute(new ActionHandler() {
+				@Override
+				public void handleAction(String action, UserInfo user, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+					h.handleFTLPost(action, user, request, response);
+				}
+			}, ftl, user, request, response);
+			return;
+		}
+		else if (h != null)
 		{
 			h.handleFTLPost(ftl, user, request, response);
 			return;
@@ -299,53 +718,136 @@ public abstract class AppServlet extends HttpServlet {
 			return "text/html";	
 	}
 	
+	/**
+	 * Send the preload Link header for a template page, and if enabled commit the headers
+	 * so the browser sees them before the page is rendered.
+	 * @param response The response
+	 * @param templateName Template to be served
+	 * @param links Link header value, or null for none
+	 */
+	protected void sendPreloadLinks(HttpServletResponse response, String templateName, String links) throws IOException
+	{
+		if (links == null)
+			return;
+		response.addHeader("Link", links);
+		if (_earlyFlush)
+		{
+			response.setContentType(getContentTypeForTemplate(templateName));
+			response.setCharacterEncoding(StreamingTemplateWriter.CHARSET);
+			response.flushBuffer();
+		}
+	}
+	
 	protected void serveTemplate(UserInfo user, HttpServletRequest request, HttpServletResponse response, String templateName, HashMap extraData) throws IOException
 	{
 		final String mtype = getContentTypeForTemplate(templateName);
 		response.setContentType(mtype);
-		ServletOutputStream p = response.getOutputStream();
 		
+		final Object evt = FlightEvents.RENDER.begin();
+		final StreamingTemplateWriter w = new StreamingTemplateWriter(response, _outputBufferSize, _flushHead);
+		try {
+			renderTemplate(user, request, templateName, extraData, w);
+			w.close();
+		} finally {
+			w.release();
+			if (evt != null)
+				FlightEvents.RENDER.commit(evt, request.getAttribute(WebLib.ROUTE_ATTR), templateName, w.getBytesWritten());
+		}
+	}
+	
+	/**
+	 * Render a template with a data model built for the request
+	 * @param user User requesting the template page
+	 * @param request The HTTP request
+	 * @param templateName Template to render
+	 * @param extraData Data added to the model, or null
+	 * @param out Destination of the rendered page
+	 * @throws IOException
+	 */
+	protected void renderTemplate(UserInfo user, HttpServletRequest request, String templateName, HashMap extraData, Writer out) throws IOException
+	{
+		final RequestTrace trace = RequestTrace.current();
+		long start = System.nanoTime();
 		Template t = null;
 		try {
 			t = _templateCfg.getTemplate(templateName);
+			if (MetricsRegistry.UNMATCHED_ROUTE.equals(request.getAttribute(WebLib.ROUTE_ATTR)))
+				request.setAttribute(WebLib.ROUTE_ATTR, "ftl:" + t.getName());
 		} catch (FileNotFoundException fnf) {
 			// in case a URL somehow (manually?) points to a non-existent FTL file, we 
 			// should try to render a nicer page than a stack trace
 			t = _templateCfg.getTemplate(_ftlHandlers.get(DEFAULT_HANDLER).getTemplateName());
 		}
+		start = trace.mark(RequestTrace.Phase.RENDER, start);
 		
-		final HashMap dmap = createDataMap(user, request);
-		if (extraData != null)
-		{
-			dmap.putAll(extraData);
-		}
+		// handler data takes precedence over request data, and both over global data
+		final LayeredDataModel model = new LayeredDataModel(_templateCfg.getObjectWrapper(), getGlobalModel(),
+				extraData, createDataMap(user, request));
 		
 		// embed also the query info, so template rendering can adjust to queries without
 		// having specialized java code
-		dmap.put("urlparams", request.getParameterMap());
+		model.put("urlparams", request.getParameterMap());
 		// also embed the name of our FTL name in case the template needs to refer to itself
-		dmap.put("ftlname", templateName);
+		model.put("ftlname", templateName);
+		start = trace.mark(RequestTrace.Phase.DATA, start);
 		
-		OutputStreamWriter osw = new OutputStreamWriter(p);
+		// pages stream as they render, socket writes while processing count as write time
+		final long written = trace.get(RequestTrace.Phase.WRITE);
 		try {
-			t.process(dmap, osw);
+			t.process(model, out);
 		} catch (TemplateException e) {
 			throw new IOException("Template error: " + e.getMessage());
+		} finally {
+			trace.add(RequestTrace.Phase.RENDER, System.nanoTime() - start - (trace.get(RequestTrace.Phase.WRITE) - written));
 		}
-		osw.flush();
-		p.flush();
+	}
+	
+	/**
+	 * Serve a cached page, compressed if the client allows it
+	 * @param request The HTTP request
+	 * @param response The HTTP response
+	 * @param page The rendered page
+	 * @throws IOException
+	 */
+	protected void servePage(HttpServletRequest request, HttpServletResponse response, PageCache.Entry page) throws IOException
+	{
+		response.setContentType(page.mContentType);
+		response.setCharacterEncoding(StreamingTemplateWriter.CHARSET);
+		byte [] data = page.mData;
+		// headers may already be committed by an early flush, in which case we can't encode
+		if (page.mGzipData != null && !response.isCommitted())
+		{
+			response.setHeader("Vary", "Accept-Encoding");
+			if (WebLib.acceptsEncoding(request, "gzip"))
+			{
+				response.setHeader("Content-Encoding", "gzip");
+				data = page.mGzipData;
+			}
+		}
+		response.setContentLength(data.length);
+		final long start = System.nanoTime();
+		ServletOutputStream p = response.getOutputStream();
+		p.write(data);
 		p.close();
+		RequestTrace.current().mark(RequestTrace.Phase.WRITE, start);
 	}
 	
 	public class TemplateResourceHandler implements ActionHandler
 	{
 		protected String _templateName;
 		protected String _title;
-		protected HashMap _extraData;
+		protected volatile HashMap _extraData;
 		protected TemplateDataFactory _extraDataFactory = null;
 		boolean _factoryRefreshAlways;
+		long _refreshInterval = 0;			// refresh data in the background this often, 0 to never
+		volatile long _dataBuilt = 0;		// time the current data was built (or last refresh failed)
+		final AtomicBoolean _refreshing = new AtomicBoolean(false);	// a background refresh is running
 		int _minPermit = UserInfo.kLoginUser;
 		ActionHandler _postHandler = null;
+		PreloadLinks _preloadLinks = null;	// assets preloaded instead of the servlet's, or null
+		PageCache _pageCache = null;
+		RequestCoalescer _coalescer = null;
+		AdmissionLimiter _limiter = null;	// set when added with a limiter
 		
 		public TemplateResourceHandler() {
 			this(null);
@@ -368,9 +870,78 @@ public abstract class AppServlet extends HttpServlet {
 		public TemplateResourceHandler setDataFactory(TemplateDataFactory tdf, boolean refreshAlways) {
 			_extraDataFactory = tdf;
 			_factoryRefreshAlways = refreshAlways;
+			_refreshInterval = 0;
+			_extraData = null;
+			return this;
+		}
+		
+		/**
+		 * Set a data factory whose data is refreshed in the background.  The first request
+		 * builds the data; afterwards requests are served the last data built, and a request
+		 * arriving after the interval has passed starts a single rebuild on another thread.
+		 * If a rebuild fails, the old data is kept and the rebuild is retried after another
+		 * interval.
+		 * @param tdf The data factory
+		 * @param refreshInterval Milliseconds the data is served before being rebuilt
+		 * @return this, to facilitate configuration in a single line
+		 */
+		public TemplateResourceHandler setDataFactory(TemplateDataFactory tdf, long refreshInterval) {
+			setDataFactory(tdf, false);
+			_refreshInterval = refreshInterval;
+			return this;
+		}
+		
+		/**
+		 * Set the assets preloaded by this page, instead of the servlet's defaults.
+		 * @param urls Asset URLs (see AppServlet.setPreloadAssets), or none to preload nothing
+		 * @return this, to facilitate configuration in a single line
+		 */
+		public TemplateResourceHandler setPreloadAssets(String... urls) {
+			_preloadLinks = new PreloadLinks(urls);
+			return this;
+		}
+		
+		/**
+		 * Cache the rendered page, so it is served without building the data model or
+		 * processing the template.  Pages are cached by the user's security level and the
+		 * values of the given URL params, and must not depend on anything else.
+		 * @param ttl Time a page is served before it is rendered again, in milliseconds
+		 * @param maxEntries Maximum number of page variants held
+		 * @param keyParams URL params that select page content
+		 * @return this, to facilitate configuration in a single line
+		 */
+		public TemplateResourceHandler setPageCache(long ttl, int maxEntries, String... keyParams) {
+			_pageCache = new PageCache(ttl, maxEntries, keyParams);
 			return this;
 		}
 		
+		/**
+		 * Coalesce identical concurrent requests, so they share one rendering of the page
+		 * (and one build of refresh-always data).  Requests are identical when they have the
+		 * same user security level and values of the given URL params, and pages must not
+		 * depend on anything else.
+		 * @param keyParams URL params that select page content
+		 * @return this, to facilitate configuration in a single line
+		 */
+		public TemplateResourceHandler setCoalesce(String... keyParams) {
+			_coalescer = new RequestCoalescer(keyParams);
+			return this;
+		}
+		
+		/**
+		 * @return The request coalescer, for statistics, or null if not coalescing
+		 */
+		public RequestCoalescer getCoalescer() {
+			return _coalescer;
+		}
+		
+		/**
+		 * @return The page cache, for statistics or clearing, or null if not caching
+		 */
+		public PageCache getPageCache() {
+			return _pageCache;
+		}
+		
 		public String getTemplateName() {
 			return _templateName;
 		}
@@ -384,15 +955,73 @@ public abstract class AppServlet extends HttpServlet {
 		 * @return
 		 */
 		public TemplateResourceHandler setInteraction(TemplateInteraction actor, boolean refreshAlways) {
-			_extraDataFactory = actor;
-			_factoryRefreshAlways = refreshAlways;
+			setDataFactory(actor, refreshAlways);
+			_postHandler = actor;
+			return this;
+		}
+		
+		/**
+		 * An interaction whose data is refreshed in the background, see setDataFactory.
+		 * @param actor The interaction
+		 * @param refreshInterval Milliseconds the data is served before being rebuilt
+		 * @return this, to facilitate configuration in a single line
+		 */
+		public TemplateResourceHandler setInteraction(TemplateInteraction actor, long refreshInterval) {
+			setDataFactory(actor, refreshInterval);
 			_postHandler = actor;
 			return this;
 		}
+		
+		/**
+		 * Get the factory data to render with, building or refreshing it as configured.
+		 * Data built for every request is never shared between requests.
+		 * @return The data, or null if there is no factory
+		 */
+		protected HashMap getExtraData() {
+			if (_extraDataFactory == null)
+				return _extraData;
+			if (_factoryRefreshAlways)
+				return _extraDataFactory.buildTemplateData();
+			
+			HashMap data = _extraData;
+			if (data == null)
+			{
+				// only the first request builds, others wait for it
+				synchronized (this) {
+					if (_extraData == null)
+					{
+						_extraData = _extraDataFactory.buildTemplateData();
+						_dataBuilt = System.currentTimeMillis();
+					}
+					data = _extraData;
+				}
+			}
+			else if (_refreshInterval > 0 && System.currentTimeMillis() - _dataBuilt >= _refreshInterval
+					&& _refreshing.compareAndSet(false, true))
+			{
+				final TemplateDataFactory factory = _extraDataFactory;
+				getRefreshExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							final HashMap fresh = factory.buildTemplateData();
+							if (fresh != null)
+								_extraData = fresh;
+						} catch (RuntimeException e) {
+							logger.log(Level.WARNING, "AppServlet: template data refresh failed for " + _templateName, e);
+						} finally {
+							_dataBuilt = System.currentTimeMillis();
+							_refreshing.set(false);
+						}
+					}
+				});
+			}
+			return data;
+		}
 	
 		@Override
-		public void handleAction(String action, UserInfo user,
-				HttpServletRequest request, HttpServletResponse response)
+		public void handleAction(String action, final UserInfo user,
+				final HttpServletRequest request, HttpServletResponse response)
 				throws ServletException, IOException {
 			
 			if (user != null && user.mLevel < _minPermit)
@@ -401,11 +1030,56 @@ public abstract class AppServlet extends HttpServlet {
 				return;
 			}
 			
-			if (_extraDataFactory != null && _extraData == null || _factoryRefreshAlways)
-				_extraData = _extraDataFactory.buildTemplateData();
+			final String templateName = _templateName!=null?_templateName:action;
+			final PreloadLinks preload = _preloadLinks != null ? _preloadLinks : AppServlet.this._preloadLinks;
+			sendPreloadLinks(response, templateName, preload != null ? preload.getHeader(_templateCfg) : null);
 			
-			serveTemplate(user, request, response, _templateName!=null?_templateName:action, _extraData);
+			if (_coalescer != null)
+			{
+				_coalescer.execute(_coalescer.createKey(templateName, user, request), response, new RequestCoalescer.Work() {
+					@Override
+					public void handle(HttpServletResponse capture) throws ServletException, IOException {
+						serveContent(templateName, user, request, capture);
+					}
+				});
+				return;
+			}
+			serveContent(templateName, user, request, response);
+		}
+		
+		// factory data, timed for the request trace
+		private HashMap tracedExtraData() {
+			final long start = System.nanoTime();
+			final HashMap data = getExtraData();
+			RequestTrace.current().mark(RequestTrace.Phase.FACTORY, start);
+			return data;
+		}
+		
+		/**
+		 * Serve the page, from the page cache if enabled or by rendering the template
+		 */
+		protected void serveContent(String templateName, UserInfo user, HttpServletRequest request, HttpServletResponse response) throws IOException
+		{
+			if (_pageCache != null)
+			{
+				final String key = _pageCache.createKey(templateName, user, request);
+				PageCache.Entry page = _pageCache.get(key);
+				if (page == null)
+				{
+					final Object evt = FlightEvents.RENDER.begin();
+					final ByteArrayOutputStream bos = new ByteArrayOutputStream(8*1024);
+					final OutputStreamWriter osw = new OutputStreamWriter(bos, StreamingTemplateWriter.CHARSET);
+					renderTemplate(user, request, templateName, tracedExtraData(), osw);
+					osw.flush();
+					if (evt != null)
+						FlightEvents.RENDER.commit(evt, request.getAttribute(WebLib.ROUTE_ATTR), templateName, (long)bos.size());
+					page = _pageCache.put(key, bos.toByteArray(), getContentTypeForTemplate(templateName));
+				}
+				servePage(request, response, page);
+				return;
+			}
 			
+			serveTemplate(user, request, response, templateName, tracedExtraData());
 		}
 		
 		/**
@@ -0,0 +1,121 @@
+package com.ilsian.tomcat;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * AsyncActionHandler - An ActionHandler for requests that wait on slow back ends.  Rather
+ * than blocking a container thread, the handler starts its work and returns a stage that
+ * completes with the result; the request is put into async mode and the container thread
+ * is released until the stage completes or the handler's timeout passes.
+ * 
+ * The result of the stage is rendered with WebLib.renderAsyncResult: JSON objects and
+ * arrays are sent as is, other values as a standard {result, message} response, and null
+ * means the handler has written the response itself.  A failed stage sends a standard
+ * failure response with status 500, a timeout one with status 504.
+ * 
+ * Servlets must be registered as async supported (WebServer.registerServlet does so).
+ * Otherwise the calling thread waits for the stage, as an ordinary handler would.
+ * 
+ * @author justin
+ *
+ */
+public interface AsyncActionHandler extends ActionHandler
+{
+	public static final long DEFAULT_TIMEOUT = 30000;	// milliseconds
+	
+	/**
+	 * Start handling a request
+	 * @return A stage completing with the result to render
+	 */
+	public CompletionStage<?> handleActionAsync(String action, UserInfo user, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException;
+	
+	/**
+	 * @return Milliseconds to wait for a result before failing the request.  The container
+	 * checks for timeouts about once a second, so shorter timeouts are not exact.
+	 */
+	public default long getTimeout() {
+		return DEFAULT_TIMEOUT;
+	}
+	
+	/**
+	 * Dispatch the request asynchronously, and render the result once it completes.
+	 */
+	@Override
+	public default void handleAction(String action, UserInfo user, HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+		final CompletionStage<?> stage = handleActionAsync(action, user, request, response);
+		
+		if (!request.isAsyncSupported())
+		{
+			// no async on this servlet, so wait here
+			try {
+				WebLib.renderAsyncResult(response, stage.toCompletableFuture().get(getTimeout(), TimeUnit.MILLISECONDS), null);
+			} catch (ExecutionException e) {
+				WebLib.renderAsyncResult(response, null, e.getCause());
+			} catch (TimeoutException e) {
+				WebLib.renderAsyncResult(response, null, e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				WebLib.renderAsyncResult(response, null, e);
+			}
+			return;
+		}
+		
+		final AsyncContext ctx = request.startAsync(request, response);
+		ctx.setTimeout(getTimeout());
+		// whichever of completion or timeout happens first renders the response
+		final AtomicBoolean done = new AtomicBoolean(false);
+		ctx.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (done.compareAndSet(false, true))
+				{
+					WebLib.renderAsyncResult(response, null, new TimeoutException("Timed out after " + getTimeout() + "ms"));
+					ctx.complete();
+				}
+			}
+			
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+				done.set(true);
+			}
+			
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException {
+			}
+			
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException {
+			}
+		});
+		
+		stage.whenComplete(new BiConsumer<Object, Throwable>() {
+			@Override
+			public void accept(Object result, Throwable error) {
+				if (!done.compareAndSet(false, true))
+					return;
+				try {
+					WebLib.renderAsyncResult(response, result, error);
+				} catch (IOException e) {
+					Logger.getLogger(AsyncActionHandler.class.getCanonicalName()).log(Level.FINE, "Async response failed", e);
+				} finally {
+					ctx.complete();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,274 @@
+package com.ilsian.tomcat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * CapturingResponse - A response wrapper which records what a handler sends (status,
+ * headers and body) rather than sending it, so the result can be replayed to any number
+ * of responses.  The content type and character encoding are also set on the wrapped
+ * response, and cookies are passed straight through to it since they belong to one
+ * client only.
+ * 
+ * The wrapped response's committed state is reported, so a handler sees headers committed
+ * by an early flush and doesn't capture headers (such as Content-Encoding) that could not
+ * be sent.  Handlers must complete synchronously: a capture is never in async mode, so
+ * setting a WriteListener on its stream fails as the servlet specification requires.
+ * 
+ * @author justin
+ *
+ */
+public class CapturingResponse extends HttpServletResponseWrapper {
+
+	/**
+	 * A captured response, immutable once created.
+	 */
+	public static class Result {
+		final int mStatus;
+		final String mErrorMessage;			// set by sendError
+		final String mRedirect;				// set by sendRedirect
+		final String mContentType;
+		final List<String[]> mHeaders;		// name, value pairs in the order added
+		final byte[] mBody;
+		
+		Result(int status, String errorMessage, String redirect, String contentType, List<String[]> headers, byte[] body) {
+			mStatus = status;
+			mErrorMessage = errorMessage;
+			mRedirect = redirect;
+			mContentType = contentType;
+			mHeaders = headers;
+			mBody = body;
+		}
+		
+		/**
+		 * Send the captured response
+		 * @param response The response to send to
+		 * @throws IOException
+		 */
+		public void replay(HttpServletResponse response) throws IOException {
+			if (mRedirect != null)
+			{
+				response.sendRedirect(mRedirect);
+				return;
+			}
+			if (mErrorMessage != null)
+			{
+				response.sendError(mStatus, mErrorMessage);
+				return;
+			}
+			
+			if (response.isCommitted())
+			{
+				// the body only makes sense with its encoding header, which can't be sent now
+				for (String [] h:mHeaders)
+				{
+					if (h[0].equalsIgnoreCase("Content-Encoding"))
+						throw new IOException("Captured response is encoded but the headers are already committed");
+				}
+			}
+			else
+			{
+				response.setStatus(mStatus);
+				if (mContentType != null)
+					response.setContentType(mContentType);
+				for (String [] h:mHeaders)
+					response.addHeader(h[0], h[1]);
+				response.setContentLength(mBody.length);
+			}
+			final ServletOutputStream out = response.getOutputStream();
+			out.write(mBody);
+			out.close();
+		}
+		
+		public int getStatus() {
+			return mStatus;
+		}
+		
+		public byte [] getBody() {
+			return mBody;
+		}
+	}
+	
+	private int _status = SC_OK;
+	private String _errorMessage = null;
+	private String _redirect = null;
+	private final List<String[]> _headers = new ArrayList<String[]>();
+	private final ByteArrayOutputStream _body = new ByteArrayOutputStream(8*1024);
+	private ServletOutputStream _stream = null;
+	private PrintWriter _writer = null;
+	
+	public CapturingResponse(HttpServletResponse response) {
+		super(response);
+	}
+	
+	/**
+	 * @return Everything captured so far
+	 */
+	public Result getResult() {
+		if (_writer != null)
+			_writer.flush();
+		return new Result(_status, _errorMessage, _redirect, getContentType(), 
+				new ArrayList<String[]>(_headers), _body.toByteArray());
+	}
+	
+	@Override
+	public ServletOutputStream getOutputStream() {
+		if (_stream == null)
+		{
+			_stream = new ServletOutputStream() {
+				@Override
+				public void write(int b) {
+					_body.write(b);
+				}
+				
+				@Override
+				public void write(byte[] b, int off, int len) {
+					_body.write(b, off, len);
+				}
+				
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+				
+				@Override
+				public void setWriteListener(WriteListener listener) {
+					throw new IllegalStateException("Captured responses are not asynchronous");
+				}
+			};
+		}
+		return _stream;
+	}
+	
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (_writer == null)
+			_writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+		return _writer;
+	}
+	
+	@Override
+	public void setStatus(int sc) {
+		_status = sc;
+	}
+	
+	@Override
+	public int getStatus() {
+		return _status;
+	}
+	
+	@Override
+	public void sendError(int sc, String msg) {
+		_status = sc;
+		_errorMessage = msg != null ? msg : "";
+	}
+	
+	@Override
+	public void sendError(int sc) {
+		sendError(sc, null);
+	}
+	
+	@Override
+	public void sendRedirect(String location) {
+		_status = SC_FOUND;
+		_redirect = location;
+	}
+	
+	@Override
+	public void setHeader(String name, String value) {
+		for (int i=_headers.size()-1;i>=0;i--)
+		{
+			if (_headers.get(i)[0].equalsIgnoreCase(name))
+				_headers.remove(i);
+		}
+		addHeader(name, value);
+	}
+	
+	@Override
+	public void addHeader(String name, String value) {
+		_headers.add(new String [] { name, value });
+	}
+	
+	@Override
+	public boolean containsHeader(String name) {
+		for (String [] h:_headers)
+		{
+			if (h[0].equalsIgnoreCase(name))
+				return true;
+		}
+		return false;
+	}
+	
+	@Override
+	public void setIntHeader(String name, int value) {
+		setHeader(name, Integer.toString(value));
+	}
+	
+	@Override
+	public void addIntHeader(String name, int value) {
+		addHeader(name, Integer.toString(value));
+	}
+	
+	@Override
+	public void setDateHeader(String name, long date) {
+		setHeader(name, formatDate(date));
+	}
+	
+	@Override
+	public void addDateHeader(String name, long date) {
+		addHeader(name, formatDate(date));
+	}
+	
+	// the length is taken from the captured body on replay
+	@Override
+	public void setContentLength(int len) {
+	}
+	
+	@Override
+	public void setContentLengthLong(long len) {
+	}
+	
+	// nothing is sent until replay
+	@Override
+	public void flushBuffer() {
+	}
+	
+	// committed only if the wrapped response was, e.g. by an early flush of preload links
+	@Override
+	public boolean isCommitted() {
+		return getResponse().isCommitted();
+	}
+	
+	@Override
+	public void resetBuffer() {
+		_body.reset();
+	}
+	
+	@Override
+	public void reset() {
+		_body.reset();
+		_headers.clear();
+		_status = SC_OK;
+		_errorMessage = null;
+		_redirect = null;
+	}
+	
+	private static String formatDate(long date) {
+		final SimpleDateFormat fmt = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		fmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return fmt.format(new Date(date));
+	}
+}
@@ -0,0 +1,54 @@
+package com.ilsian.tomcat;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * CoalescingActionHandler - Wraps an ActionHandler so identical concurrent requests run
+ * it once and share the response, see RequestCoalescer.
+ * 
+ * @author justin
+ *
+ */
+public class CoalescingActionHandler implements ActionHandler {
+
+	private final ActionHandler _handler;
+	private final RequestCoalescer _coalescer;
+	
+	/**
+	 * Constructor.  Coalesce requests of a handler.
+	 * @param handler The handler, whose response must depend only on the action, the user's
+	 * security level and the key params.  It must complete synchronously, so it can't be an
+	 * AsyncActionHandler.
+	 * @param keyParams Names of the params that select response content
+	 */
+	public CoalescingActionHandler(ActionHandler handler, String... keyParams) {
+		if (handler instanceof AsyncActionHandler)
+			throw new IllegalArgumentException("Asynchronous handlers can't be coalesced");
+		_handler = handler;
+		_coalescer = new RequestCoalescer(keyParams);
+	}
+	
+	@Override
+	public void handleAction(final String action, final UserInfo user, final HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		_coalescer.execute(_coalescer.createKey(action, user, request), response, new RequestCoalescer.Work() {
+			@Override
+			public void handle(HttpServletResponse capture) throws ServletException, IOException {
+				_handler.handleAction(action, user, request, capture);
+				// the response would be captured before the handler wrote it
+				if (request.isAsyncStarted())
+					throw new IllegalStateException("Coalesced handler for '" + action + "' started async processing");
+			}
+		});
+	}
+	
+	/**
+	 * @return The coalescer, for statistics
+	 */
+	public RequestCoalescer getCoalescer() {
+		return _coalescer;
+	}
+}
@@ -1,16 +1,16 @@
 package com.ilsian.tomcat;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.util.HashMap;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
-import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.ilsian.commonweb.res.Loader;
+
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
@@ -32,6 +32,12 @@ public class FTLServlet extends HttpServlet {
 	
 	Configuration _FTLLoader;		// FTL template loader
 	FTLDataMapFactory _dataFactory;	// Factory to locate data maps for template rendering
+	PreloadLinks _preloadLinks = null;	// preloaded assets, or null
+	boolean _earlyFlush = false;	// commit headers before building the data map
+	boolean _precompile = false;	// parse all templates during init
+	int _outputBufferSize = StreamingTemplateWriter.DEFAULT_BUFFER_SIZE;	// bytes of a page buffered before streaming
+	boolean _flushHead = false;		// send pages as soon as the head is rendered
+	MetricsRegistry _metrics = MetricsRegistry.getDefault();	// request metrics, or null to not record
 
 	/**
 	 * Constructor.  Create a Freemarker rendering servlet.
@@ -51,6 +57,73 @@ public class FTLServlet extends HttpServlet {
 
 		};
 	}
+	
+	/**
+	 * Servlet initialization.  Bind the templates to the asset bundles served by this web
+	 * server, and parse all templates now, if requested.
+	 */
+	@Override
+	public void init() throws ServletException {
+		Loader.setPublishedBundles(_FTLLoader, WebLib.getPublishedBundles(getServletContext()));
+		if (_precompile)
+		{
+			try {
+				Loader.precompileTemplates(_FTLLoader);
+			} catch (IOException e) {
+				throw new ServletException("Template precompile failed", e);
+			}
+		}
+	}
+	
+	/**
+	 * Set whether all templates are parsed when the servlet initializes, rather than on
+	 * first request.  Only templates of configurations created by the Loader are found.
+	 * @param precompile True to precompile templates
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public FTLServlet setPrecompileTemplates(boolean precompile) {
+		_precompile = precompile;
+		return this;
+	}
+	
+	/**
+	 * Set how rendered pages are buffered.  Pages that fit the buffer are sent with a
+	 * Content-Length, larger ones are streamed chunked as the buffer fills.
+	 * @param size Buffer size in bytes
+	 * @param flushHead True to send each page as soon as its '</head>' is rendered
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public FTLServlet setOutputBuffer(int size, boolean flushHead) {
+		_outputBufferSize = size;
+		_flushHead = flushHead;
+		return this;
+	}
+	
+	/**
+	 * Set where request metrics are recorded, by default the default MetricsRegistry.
+	 * Requests are recorded by template name.
+	 * @param metrics The registry, or null to not record metrics
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public FTLServlet setMetrics(MetricsRegistry metrics) {
+		_metrics = metrics;
+		return this;
+	}
+	
+	/**
+	 * Set the assets preloaded by all templates, Loader.COMMON_ASSETS for the common
+	 * stylesheets and scripts (as bundles once they are published).  Preloads are sent as
+	 * a 'Link: rel=preload' header so the browser can fetch them before it has parsed the page.
+	 * @param urls Asset URLs, or none to stop preloading
+	 * @param earlyFlush True to commit the headers before the data map is built, so assets
+	 * load while a slow page is still rendering
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public FTLServlet setPreloadAssets(boolean earlyFlush, String... urls) {
+		_preloadLinks = urls != null && urls.length > 0 ? new PreloadLinks(urls) : null;
+		_earlyFlush = earlyFlush;
+		return this;
+	}
 
 	/**
 	 * Determine the FTL template name from a URL request
@@ -61,6 +134,32 @@ public class FTLServlet extends HttpServlet {
 		final String uri = request.getRequestURI();
 		return uri.substring(uri.lastIndexOf('/') + 1, uri.length());
 	}
+	
+	/**
+	 * Serve a request, recording its metrics by template.  Requests for templates which
+	 * don't load are recorded as unmatched.
+	 */
+	@Override
+	protected void service(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		
+		final MetricsRegistry metrics = _metrics;
+		if (metrics == null)
+		{
+			super.service(request, response);
+			return;
+		}
+		
+		final MeteredResponse metered = new MeteredResponse(response);
+		boolean ok = false;
+		try {
+			super.service(request, metered);
+			ok = true;
+		} finally {
+			final Object route = request.getAttribute(WebLib.ROUTE_ATTR);
+			metrics.complete(getServletName(), route != null ? route.toString() : MetricsRegistry.UNMATCHED_ROUTE, request, metered, ok);
+		}
+	}
 
 	/**
 	 * Handle HTTP Get requests for templates
@@ -75,19 +174,30 @@ public class FTLServlet extends HttpServlet {
 		logger.finest(String.format("FTL:goGet[%s]=%s", request.getRequestURI(), templateName));
 
 		response.setContentType("text/html");
-		ServletOutputStream p = response.getOutputStream();
+		response.setCharacterEncoding(StreamingTemplateWriter.CHARSET);
 
 		final Template t = _FTLLoader.getTemplate(templateName);
+		request.setAttribute(WebLib.ROUTE_ATTR, t.getName());
+		final String links = _preloadLinks != null ? _preloadLinks.getHeader(_FTLLoader) : null;
+		if (links != null)
+		{
+			response.addHeader("Link", links);
+			if (_earlyFlush)
+				response.flushBuffer();
+		}
 		final HashMap<?,?> dmap = _dataFactory.getFTLDataMap(templateName);
 
-		OutputStreamWriter osw = new OutputStreamWriter(p);
+		final Object evt = FlightEvents.RENDER.begin();
+		final StreamingTemplateWriter w = new StreamingTemplateWriter(response, _outputBufferSize, _flushHead);
 		try {
-			t.process(dmap, osw);
+			t.process(dmap, w);
+			w.close();
 		} catch (TemplateException e) {
 			throw new IOException("Template error: " + e.getMessage());
+		} finally {
+			w.release();
+			if (evt != null)
+				FlightEvents.RENDER.commit(evt, templateName, templateName, w.getBytesWritten());
 		}
-		osw.flush();
-		p.flush();
-		p.close();
 	}
 }
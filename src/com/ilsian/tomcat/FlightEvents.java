@@ -0,0 +1,167 @@
+package com.ilsian.tomcat;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * FlightEvents - Java Flight Recorder events for requests, template renders, static
+ * resources and LDAP binds, so a recording shows where server time went alongside the
+ * JVM's own events.  Events are shown under the 'Ilsian Web' category.
+ * 
+ * The jdk.jfr API is not part of Java 8, so events are defined at runtime with
+ * jdk.jfr.EventFactory when the JVM has Flight Recorder (Java 11 and later, 8u262 and
+ * later) and do nothing otherwise.  Recording an event is:
+ * 
+ *   final Object evt = FlightEvents.RENDER.begin();
+ *   ...
+ *   if (evt != null)
+ *       FlightEvents.RENDER.commit(evt, route, template, bytes);
+ * 
+ * begin returns null when Flight Recorder is missing or no recording has the event
+ * enabled.  It checks the enabled state of the event type before creating an event, so
+ * outside of recordings no event is allocated; the method handles are invoked exactly,
+ * so the JIT can inline them.
+ * 
+ * @author justin
+ *
+ */
+public class FlightEvents {
+
+	static Logger logger = java.util.logging.Logger.getLogger(FlightEvents.class.getCanonicalName());
+	
+	public static final String CATEGORY = "Ilsian Web";
+	
+	// methods of jdk.jfr.Event taking the event as an Object, null when Flight Recorder is unavailable
+	private static final MethodHandle EVENT_BEGIN = eventMethod("begin", MethodType.methodType(void.class));
+	private static final MethodHandle EVENT_END = eventMethod("end", MethodType.methodType(void.class));
+	private static final MethodHandle EVENT_SET = eventMethod("set", MethodType.methodType(void.class, int.class, Object.class));
+	private static final MethodHandle EVENT_COMMIT = eventMethod("commit", MethodType.methodType(void.class));
+	
+	/** AppServlet request: servlet, method, route, user level, status, bytes */
+	public static final FlightEvents DISPATCH = new FlightEvents("com.ilsian.Dispatch", "AppServlet Dispatch",
+			new String [] { "servlet", "method", "route", "userLevel", "status", "bytes" },
+			new Class<?> [] { String.class, String.class, String.class, int.class, int.class, long.class });
+	
+	/** Template render: route, template, bytes */
+	public static final FlightEvents RENDER = new FlightEvents("com.ilsian.TemplateRender", "Template Render",
+			new String [] { "route", "template", "bytes" },
+			new Class<?> [] { String.class, String.class, long.class });
+	
+	/** Static resource: route, resource, status, bytes */
+	public static final FlightEvents STATIC_RESOURCE = new FlightEvents("com.ilsian.StaticResource", "Static Resource",
+			new String [] { "route", "resource", "status", "bytes" },
+			new Class<?> [] { String.class, String.class, int.class, long.class });
+	
+	/** LDAP bind: url, dn, success */
+	public static final FlightEvents LDAP_BIND = new FlightEvents("com.ilsian.LdapBind", "LDAP Bind",
+			new String [] { "url", "dn", "success" },
+			new Class<?> [] { String.class, String.class, boolean.class });
+	
+	private final String _name;
+	private final MethodHandle _newEvent;		// () -> Object, null when Flight Recorder is unavailable
+	private final MethodHandle _enabled;		// () -> boolean, true if a recording has the event type enabled
+	
+	private FlightEvents(String name, String label, String [] fields, Class<?> [] types) {
+		_name = name;
+		MethodHandle newEvent = null;
+		MethodHandle enabled = null;
+		try {
+			final Class<?> annotationCls = Class.forName("jdk.jfr.AnnotationElement");
+			final Class<?> descriptorCls = Class.forName("jdk.jfr.ValueDescriptor");
+			final Class<?> factoryCls = Class.forName("jdk.jfr.EventFactory");
+			final Class<?> eventCls = Class.forName("jdk.jfr.Event");
+			final Class<?> typeCls = Class.forName("jdk.jfr.EventType");
+			
+			final Constructor<?> annotation = annotationCls.getConstructor(Class.class, Object.class);
+			final List<Object> annotations = new ArrayList<Object>();
+			annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), name));
+			annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), label));
+			annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String [] { CATEGORY }));
+			
+			final Constructor<?> descriptor = descriptorCls.getConstructor(Class.class, String.class);
+			final List<Object> descriptors = new ArrayList<Object>();
+			for (int i=0;i<fields.length;i++)
+				descriptors.add(descriptor.newInstance(types[i], fields[i]));
+			
+			final Object factory = factoryCls.getMethod("create", List.class, List.class).invoke(null, annotations, descriptors);
+			
+			final Object type = factoryCls.getMethod("getEventType").invoke(factory);
+			
+			final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			enabled = lookup.findVirtual(typeCls, "isEnabled", MethodType.methodType(boolean.class)).bindTo(type);
+			newEvent = lookup.findVirtual(factoryCls, "newEvent", MethodType.methodType(eventCls)).bindTo(factory)
+					.asType(MethodType.methodType(Object.class));
+		} catch (ClassNotFoundException e) {
+			// no Flight Recorder in this JVM
+		} catch (Throwable e) {
+			logger.log(Level.FINE, "FlightEvents: unable to define " + name, e);
+		}
+		// unavailable unless the event methods were found as well
+		_newEvent = EVENT_COMMIT != null ? newEvent : null;
+		_enabled = enabled;
+	}
+	
+	// find an Event method, typed to take the event as an Object so it can be invoked exactly
+	private static MethodHandle eventMethod(String name, MethodType type) {
+		try {
+			return MethodHandles.publicLookup().findVirtual(Class.forName("jdk.jfr.Event"), name, type)
+					.asType(type.insertParameterTypes(0, Object.class));
+		} catch (ClassNotFoundException e) {
+			// no Flight Recorder in this JVM
+		} catch (Throwable e) {
+			logger.log(Level.FINE, "FlightEvents: unable to find Event." + name, e);
+		}
+		return null;
+	}
+	
+	/**
+	 * @return True if Flight Recorder is available, so the event can be recorded
+	 */
+	public boolean isAvailable() {
+		return _newEvent != null;
+	}
+	
+	/**
+	 * Start an event, if it is being recorded
+	 * @return The started event, or null if it is not being recorded
+	 */
+	public Object begin() {
+		if (_newEvent == null)
+			return null;
+		try {
+			if (!(boolean)_enabled.invokeExact())
+				return null;
+			final Object evt = (Object)_newEvent.invokeExact();
+			EVENT_BEGIN.invokeExact(evt);
+			return evt;
+		} catch (Throwable e) {
+			logger.log(Level.FINE, "FlightEvents: unable to begin " + _name, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * End and commit an event
+	 * @param evt Event from begin, null is ignored
+	 * @param values Values of the event's fields, in order
+	 */
+	public void commit(Object evt, Object... values) {
+		if (evt == null)
+			return;
+		try {
+			EVENT_END.invokeExact(evt);
+			for (int i=0;i<values.length;i++)
+				EVENT_SET.invokeExact(evt, i, values[i]);
+			EVENT_COMMIT.invokeExact(evt);
+		} catch (Throwable e) {
+			logger.log(Level.FINE, "FlightEvents: unable to commit " + _name + " " + Arrays.toString(values), e);
+		}
+	}
+}
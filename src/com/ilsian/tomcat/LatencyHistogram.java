@@ -0,0 +1,178 @@
+package com.ilsian.tomcat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram - A lock-free histogram of durations in nanoseconds, bucketed the way
+ * HdrHistogram does it: each power of two range is split into 16 linear sub-buckets, so
+ * any recorded value is reported within about 6% while the whole range from 1ns to over
+ * two hours needs only a few hundred counters.  Recording is a couple of atomic increments
+ * and never allocates, so it is cheap enough for every request.
+ * 
+ * Other non-negative quantities, such as bytes allocated, may be recorded the same way.
+ * 
+ * Reads are not atomic with respect to concurrent recording, so a percentile or bucket
+ * count may miss values recorded while it is computed.
+ * 
+ * @author justin
+ *
+ */
+public class LatencyHistogram {
+
+	static final int SUB_BUCKET_BITS = 4;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	static final int MAX_EXPONENT = 43;			// 2^43ns, about 2.4 hours
+	public static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;	// larger values are clamped
+	
+	private final AtomicLongArray _counts = new AtomicLongArray(SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+	private final AtomicLong _count = new AtomicLong();
+	private final AtomicLong _sum = new AtomicLong();
+	private final AtomicLong _max = new AtomicLong();
+	
+	/**
+	 * Record a duration
+	 * @param nanos Duration in nanoseconds, negative values are recorded as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		else if (nanos > MAX_VALUE)
+			nanos = MAX_VALUE;
+		_counts.incrementAndGet(indexOf(nanos));
+		_count.incrementAndGet();
+		_sum.addAndGet(nanos);
+		long max = _max.get();
+		while (nanos > max && !_max.compareAndSet(max, nanos))
+			max = _max.get();
+	}
+	
+	/**
+	 * Record a duration, correcting for coordinated omission: a client which waits for
+	 * each response before sending its next request sends fewer requests while the server
+	 * stalls, hiding the stall from the results.  As HdrHistogram does, a duration longer
+	 * than the expected interval between requests also records the durations the requests
+	 * which should have been sent meanwhile would have seen.
+	 * @param nanos Duration in nanoseconds
+	 * @param expectedInterval Expected nanoseconds between requests, 0 for no correction
+	 */
+	public void recordCorrected(long nanos, long expectedInterval) {
+		record(nanos);
+		if (expectedInterval <= 0)
+			return;
+		for (long missing = nanos - expectedInterval;missing >= expectedInterval;missing -= expectedInterval)
+			record(missing);
+	}
+	
+	/**
+	 * Add all values recorded by another histogram to this one
+	 * @param other The histogram to add
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i=0;i<_counts.length();i++)
+		{
+			final long c = other._counts.get(i);
+			if (c != 0)
+				_counts.addAndGet(i, c);
+		}
+		_count.addAndGet(other._count.get());
+		_sum.addAndGet(other._sum.get());
+		final long otherMax = other._max.get();
+		long max = _max.get();
+		while (otherMax > max && !_max.compareAndSet(max, otherMax))
+			max = _max.get();
+	}
+	
+	/**
+	 * Discard all recorded values
+	 */
+	public void reset() {
+		for (int i=0;i<_counts.length();i++)
+			_counts.set(i, 0);
+		_count.set(0);
+		_sum.set(0);
+		_max.set(0);
+	}
+	
+	/**
+	 * @return Number of values recorded
+	 */
+	public long getCount() {
+		return _count.get();
+	}
+	
+	/**
+	 * @return Sum of all values recorded, in nanoseconds
+	 */
+	public long getSum() {
+		return _sum.get();
+	}
+	
+	/**
+	 * @return Largest value recorded, in nanoseconds
+	 */
+	public long getMax() {
+		return _max.get();
+	}
+	
+	/**
+	 * @return Mean of the values recorded, in nanoseconds
+	 */
+	public double getMean() {
+		final long count = _count.get();
+		return count > 0 ? (double)_sum.get() / count : 0;
+	}
+	
+	/**
+	 * Get the value at a percentile
+	 * @param percentile Percentile, 0 to 100
+	 * @return The highest value equivalent to the value at the percentile, in nanoseconds,
+	 * or 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		final long count = _count.get();
+		if (count == 0)
+			return 0;
+		final long target = Math.max(1, (long)Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+		long seen = 0;
+		for (int i=0;i<_counts.length();i++)
+		{
+			seen += _counts.get(i);
+			if (seen >= target)
+				return Math.min(highestValueOf(i), _max.get());
+		}
+		return _max.get();
+	}
+	
+	/**
+	 * Count the values recorded at or below a limit, as needed for cumulative histogram
+	 * buckets.  Values in the sub-bucket containing the limit are counted only if the whole
+	 * sub-bucket is at or below it.
+	 * @param nanos The limit, in nanoseconds
+	 * @return Number of values at or below the limit
+	 */
+	public long getCountAtOrBelow(long nanos) {
+		long count = 0;
+		for (int i=0;i<_counts.length() && highestValueOf(i) <= nanos;i++)
+			count += _counts.get(i);
+		return count;
+	}
+	
+	// bucket index of a value, values below 2*SUB_BUCKETS are exact
+	static int indexOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int)value;
+		final int exp = 63 - Long.numberOfLeadingZeros(value);
+		final int shift = exp - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + (int)((value >>> shift) - SUB_BUCKETS);
+	}
+	
+	// largest value which falls in a bucket
+	static long highestValueOf(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		final int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		final long sub = (index - SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,132 @@
+package com.ilsian.tomcat;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import freemarker.template.ObjectWrapper;
+import freemarker.template.TemplateHashModel;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+
+/**
+ * LayeredDataModel - A template data model that resolves names through layers rather than
+ * copying every binding into one map per request.  Names are looked up in a small set of
+ * request values, then each data layer in order, then a global model shared by all
+ * requests.  Layer values are wrapped only when a template actually uses them, and then
+ * only once per render, as wrapping may copy a map or list; global values are wrapped
+ * once when the global model is built.
+ * 
+ * @author justin
+ *
+ */
+public class LayeredDataModel implements TemplateHashModel {
+
+	/**
+	 * An immutable model whose values are wrapped once, like Freemarker's shared variables.
+	 */
+	public static class GlobalModel implements TemplateHashModel {
+		private final Map<String, TemplateModel> _values;
+		
+		/**
+		 * Constructor.  Wrap a set of global values.  Later changes to the values (or any
+		 * maps or lists among them) are not seen by the model.
+		 * @param data Global values
+		 * @param wrapper Wrapper used to convert values for templates
+		 * @throws TemplateModelException If a value cannot be wrapped
+		 */
+		public GlobalModel(Map<?,?> data, ObjectWrapper wrapper) throws TemplateModelException {
+			final HashMap<String, TemplateModel> values = new HashMap<String, TemplateModel>();
+			if (data != null)
+			{
+				for (Map.Entry<?,?> e:data.entrySet())
+					values.put(String.valueOf(e.getKey()), wrapper.wrap(e.getValue()));
+			}
+			_values = Collections.unmodifiableMap(values);
+		}
+		
+		@Override
+		public TemplateModel get(String key) {
+			return _values.get(key);
+		}
+		
+		@Override
+		public boolean isEmpty() {
+			return _values.isEmpty();
+		}
+	}
+	
+	private final ObjectWrapper _wrapper;
+	private final TemplateHashModel _global;
+	private final Map<?,?> [] _layers;
+	private HashMap<String, Object> _request = null;	// created on first put
+	private HashMap<String, TemplateModel> _wrapped = null;	// request and layer values wrapped so far
+	
+	/**
+	 * Constructor.  Create a data model for a single render.
+	 * @param wrapper Wrapper used to convert layer values for templates
+	 * @param global Model searched last, or null
+	 * @param layers Maps searched in order, any of which may be null
+	 */
+	public LayeredDataModel(ObjectWrapper wrapper, TemplateHashModel global, Map<?,?>... layers) {
+		_wrapper = wrapper;
+		_global = global;
+		_layers = layers;
+	}
+	
+	/**
+	 * Add a request value, which takes precedence over all layers
+	 * @param key Name
+	 * @param value Value
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public LayeredDataModel put(String key, Object value) {
+		if (_request == null)
+			_request = new HashMap<String, Object>(4);
+		_request.put(key, value);
+		if (_wrapped != null)
+			_wrapped.remove(key);
+		return this;
+	}
+	
+	@Override
+	public TemplateModel get(String key) throws TemplateModelException {
+		if (_wrapped != null)
+		{
+			final TemplateModel model = _wrapped.get(key);
+			if (model != null)
+				return model;
+		}
+		if (_request != null && _request.containsKey(key))
+			return remember(key, _wrapper.wrap(_request.get(key)));
+		for (Map<?,?> layer:_layers)
+		{
+			if (layer != null && layer.containsKey(key))
+				return remember(key, _wrapper.wrap(layer.get(key)));
+		}
+		return _global != null ? _global.get(key) : null;
+	}
+	
+	// keep a wrapped value, so later lookups during the render don't wrap it again
+	private TemplateModel remember(String key, TemplateModel model) {
+		if (model != null)
+		{
+			if (_wrapped == null)
+				_wrapped = new HashMap<String, TemplateModel>(8);
+			_wrapped.put(key, model);
+		}
+		return model;
+	}
+	
+	@Override
+	public boolean isEmpty() throws TemplateModelException {
+		if (_request != null && !_request.isEmpty())
+			return false;
+		for (Map<?,?> layer:_layers)
+		{
+			if (layer != null && !layer.isEmpty())
+				return false;
+		}
+		return _global == null || _global.isEmpty();
+	}
+}
@@ -0,0 +1,134 @@
+package com.ilsian.tomcat;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * MeteredResponse - A response wrapper which counts the bytes of the body as they pass
+ * through to the wrapped response, for request metrics.  Nothing is buffered, so the
+ * wrapper can be used for async responses and responses which are never flushed.
+ * Characters written to the writer are counted by their encoded length, exactly for
+ * UTF-8 and single byte encodings.
+ * 
+ * @author justin
+ *
+ */
+public class MeteredResponse extends HttpServletResponseWrapper {
+
+	final long mStart = System.nanoTime();		///< When the request started
+	final long mAllocationStart;				///< Bytes the thread had allocated at the start, or -1 if not sampled
+	private volatile long _bytes = 0;			// written by one thread at a time, possibly not the one recording
+	private boolean _utf8 = false;
+	private ServletOutputStream _stream = null;
+	private PrintWriter _writer = null;
+	
+	public MeteredResponse(HttpServletResponse response) {
+		this(response, false);
+	}
+	
+	/**
+	 * Constructor.  Create a metered response, which may also sample the bytes allocated by
+	 * the current thread until the request is recorded.
+	 * @param response The response to wrap
+	 * @param sampleAllocation True to sample allocation
+	 */
+	public MeteredResponse(HttpServletResponse response, boolean sampleAllocation) {
+		super(response);
+		mAllocationStart = sampleAllocation ? MetricsRegistry.getThreadAllocatedBytes() : -1;
+	}
+	
+	/**
+	 * @return Bytes of the body written so far
+	 */
+	public long getBytesWritten() {
+		return _bytes;
+	}
+	
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (_stream == null)
+		{
+			final ServletOutputStream sos = super.getOutputStream();
+			_stream = new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					sos.write(b);
+					_bytes++;
+				}
+				
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					sos.write(b, off, len);
+					_bytes += len;
+				}
+				
+				@Override
+				public void flush() throws IOException {
+					sos.flush();
+				}
+				
+				@Override
+				public void close() throws IOException {
+					sos.close();
+				}
+				
+				@Override
+				public boolean isReady() {
+					return sos.isReady();
+				}
+				
+				@Override
+				public void setWriteListener(WriteListener listener) {
+					sos.setWriteListener(listener);
+				}
+			};
+		}
+		return _stream;
+	}
+	
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (_writer == null)
+		{
+			final PrintWriter pw = super.getWriter();
+			_utf8 = "UTF-8".equalsIgnoreCase(getCharacterEncoding());
+			_writer = new PrintWriter(new FilterWriter(pw) {
+				@Override
+				public void write(int c) throws IOException {
+					out.write(c);
+					_bytes += encodedLength((char)c);
+				}
+				
+				@Override
+				public void write(char[] cbuf, int off, int len) throws IOException {
+					out.write(cbuf, off, len);
+					for (int i=off;i<off+len;i++)
+						_bytes += encodedLength(cbuf[i]);
+				}
+				
+				@Override
+				public void write(String str, int off, int len) throws IOException {
+					out.write(str, off, len);
+					for (int i=off;i<off+len;i++)
+						_bytes += encodedLength(str.charAt(i));
+				}
+			});
+		}
+		return _writer;
+	}
+	
+	// bytes a char encodes to, each half of a surrogate pair is half of its 4 bytes
+	private int encodedLength(char c) {
+		if (!_utf8 || c < 0x80)
+			return 1;
+		if (c < 0x800 || Character.isSurrogate(c))
+			return 2;
+		return 3;
+	}
+}
@@ -0,0 +1,379 @@
+package com.ilsian.tomcat;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.catalina.Globals;
+
+/**
+ * MetricsRegistry - Request metrics by route: counts, errors, bytes written and a latency
+ * histogram for each servlet, method and route, plus any number of gauges.  AppServlet,
+ * FTLServlet and StaticResourceServlet record to the default registry unless configured
+ * otherwise, and MetricsServlet publishes a registry in Prometheus text format.
+ * 
+ * Routes are labels, so their number is capped; once the cap is reached requests for new
+ * routes are counted under the route 'other'.  Servlets label requests which did not resolve
+ * to a handler or template as 'unmatched', so clients can't create routes at will.
+ * 
+ * Servlets may also sample the bytes their thread allocates for each request (on JVMs
+ * which count them, such as HotSpot) into a per-route histogram, to find the routes
+ * responsible for GC pressure.  The JVM's per thread counting is only switched on when a
+ * servlet enables sampling.  Virtual threads aren't counted, so requests run on a
+ * VirtualThreadExecutor record no allocation.
+ * 
+ * @author justin
+ *
+ */
+public class MetricsRegistry {
+
+	public static final int DEFAULT_MAX_ROUTES = 200;
+	public static final String OTHER_ROUTE = "other";
+	public static final String UNMATCHED_ROUTE = "unmatched";
+	
+	// upper bounds of the published latency buckets, in seconds
+	static final double [] BUCKET_BOUNDS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+	// upper bounds of the published allocation buckets, in bytes
+	static final double [] ALLOCATION_BOUNDS = { 1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216, 67108864 };
+	
+	static Logger logger = java.util.logging.Logger.getLogger(MetricsRegistry.class.getCanonicalName());
+	
+	private static final MetricsRegistry sDefault = new MetricsRegistry();
+	// allocation counter of the JVM, or null if it doesn't count allocation by thread
+	private static final com.sun.management.ThreadMXBean sThreadBean = initThreadBean();
+	private static final AtomicBoolean sUncountedWarned = new AtomicBoolean(false);
+	
+	/**
+	 * A value sampled when metrics are published
+	 */
+	public interface Gauge {
+		double getValue();
+	}
+	
+	/**
+	 * Metrics of a single route
+	 */
+	public static class RouteMetrics {
+		public final String mServlet;		///< Servlet name
+		public final String mMethod;		///< HTTP method
+		public final String mRoute;			///< Route, e.g. action or template name
+		final AtomicLong mRequests = new AtomicLong();
+		final AtomicLong mErrors = new AtomicLong();
+		final AtomicLong mBytes = new AtomicLong();
+		final LatencyHistogram mLatency = new LatencyHistogram();
+		final LatencyHistogram mAllocated = new LatencyHistogram();	// bytes, when sampled
+		
+		RouteMetrics(String servlet, String method, String route) {
+			mServlet = servlet;
+			mMethod = method;
+			mRoute = route;
+		}
+		
+		/**
+		 * Record a completed request
+		 * @param nanos Time taken
+		 * @param error True if the request failed
+		 * @param bytes Bytes of the response body
+		 */
+		public void record(long nanos, boolean error, long bytes) {
+			mRequests.incrementAndGet();
+			if (error)
+				mErrors.incrementAndGet();
+			mBytes.addAndGet(bytes);
+			mLatency.record(nanos);
+		}
+		
+		public long getRequests() {
+			return mRequests.get();
+		}
+		
+		public long getErrors() {
+			return mErrors.get();
+		}
+		
+		public long getBytes() {
+			return mBytes.get();
+		}
+		
+		public LatencyHistogram getLatency() {
+			return mLatency;
+		}
+		
+		/**
+		 * @return Bytes allocated by each sampled request
+		 */
+		public LatencyHistogram getAllocated() {
+			return mAllocated;
+		}
+	}
+	
+	private final ConcurrentHashMap<String, RouteMetrics> _routes = new ConcurrentHashMap<String, RouteMetrics>();
+	private final Map<String, Object[]> _gauges = new ConcurrentHashMap<String, Object[]>();	// name to help, gauge
+	private volatile int _maxRoutes = DEFAULT_MAX_ROUTES;
+	
+	private static com.sun.management.ThreadMXBean initThreadBean() {
+		try {
+			final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean
+					&& ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported())
+				return (com.sun.management.ThreadMXBean)bean;
+		} catch (LinkageError e) {
+			// not a JVM with com.sun.management
+		}
+		return null;
+	}
+	
+	/**
+	 * Switch on the JVM's counting of the bytes each thread allocates, if it is off.  This
+	 * applies to the whole JVM, so it is done only when sampling is requested.
+	 * @return True if allocation can be sampled
+	 */
+	public static boolean enableAllocationSampling() {
+		if (sThreadBean == null)
+			return false;
+		try {
+			if (!sThreadBean.isThreadAllocatedMemoryEnabled())
+				sThreadBean.setThreadAllocatedMemoryEnabled(true);
+			return true;
+		} catch (UnsupportedOperationException e) {
+			// counting can't be enabled
+			return false;
+		}
+	}
+	
+	/**
+	 * @return True if the JVM counts the bytes each thread allocates
+	 */
+	public static boolean isAllocationSamplingSupported() {
+		return sThreadBean != null;
+	}
+	
+	/**
+	 * @return Total bytes the current thread has allocated, or -1 if the JVM doesn't count them
+	 * for this thread, e.g. a virtual thread, or counting isn't enabled
+	 */
+	public static long getThreadAllocatedBytes() {
+		if (sThreadBean == null)
+			return -1;
+		final long bytes = sThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		if (bytes < 0 && sUncountedWarned.compareAndSet(false, true))
+			logger.info("Allocation is not counted for thread " + Thread.currentThread() + ", requests on such threads record none");
+		return bytes;
+	}
+	
+	/**
+	 * @return The registry servlets record to by default
+	 */
+	public static MetricsRegistry getDefault() {
+		return sDefault;
+	}
+	
+	/**
+	 * Set the most routes tracked before new routes are counted as 'other'
+	 * @param maxRoutes Maximum number of routes
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public MetricsRegistry setMaxRoutes(int maxRoutes) {
+		_maxRoutes = maxRoutes;
+		return this;
+	}
+	
+	/**
+	 * Get the metrics of a route, creating them if needed
+	 * @param servlet Servlet name
+	 * @param method HTTP method
+	 * @param route Route name
+	 * @return The route metrics
+	 */
+	public RouteMetrics getRoute(String servlet, String method, String route) {
+		final String key = servlet + '\n' + method + '\n' + route;
+		RouteMetrics rm = _routes.get(key);
+		if (rm == null)
+		{
+			if (_routes.size() >= _maxRoutes && !OTHER_ROUTE.equals(route))
+				return getRoute(servlet, method, OTHER_ROUTE);
+			rm = new RouteMetrics(servlet, method, route);
+			final RouteMetrics prior = _routes.putIfAbsent(key, rm);
+			if (prior != null)
+				rm = prior;
+		}
+		return rm;
+	}
+	
+	/**
+	 * @return The metrics of all routes, in no particular order
+	 */
+	public List<RouteMetrics> getRoutes() {
+		return new ArrayList<RouteMetrics>(_routes.values());
+	}
+	
+	/**
+	 * Add a gauge, replacing any of the same name
+	 * @param name Metric name, e.g. 'app_sessions'
+	 * @param help Description of the metric
+	 * @param gauge The gauge
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public MetricsRegistry addGauge(String name, String help, Gauge gauge) {
+		_gauges.put(name, new Object [] { help, gauge });
+		return this;
+	}
+	
+	/**
+	 * Record a request served through a MeteredResponse.  A request which went async is
+	 * recorded when its response completes, though allocation is only sampled until the
+	 * servlet returns, as later work runs on other threads.
+	 * @param servlet Servlet name
+	 * @param route Route name
+	 * @param request The request
+	 * @param response The metered response
+	 * @param ok False if the servlet threw an exception
+	 */
+	public void complete(String servlet, String route, final HttpServletRequest request, final MeteredResponse response, boolean ok) {
+		final RouteMetrics rm = getRoute(servlet, request.getMethod(), route);
+		if (response.mAllocationStart >= 0)
+		{
+			final long allocated = getThreadAllocatedBytes();
+			if (allocated >= 0)
+				rm.mAllocated.record(allocated - response.mAllocationStart);
+		}
+		if (ok && request.isAsyncStarted())
+		{
+			request.getAsyncContext().addListener(new AsyncListener() {
+				volatile boolean _failed = false;
+				
+				@Override
+				public void onComplete(AsyncEvent event) {
+					record(rm, request, response, !_failed);
+				}
+				
+				@Override
+				public void onTimeout(AsyncEvent event) {
+					_failed = true;
+				}
+				
+				@Override
+				public void onError(AsyncEvent event) {
+					_failed = true;
+				}
+				
+				@Override
+				public void onStartAsync(AsyncEvent event) {
+				}
+			});
+		}
+		else
+			record(rm, request, response, ok);
+	}
+	
+	private static void record(RouteMetrics rm, HttpServletRequest request, MeteredResponse response, boolean ok) {
+		long bytes = response.getBytesWritten();
+		final Object sendfileEnd = request.getAttribute(Globals.SENDFILE_FILE_END_ATTR);
+		if (sendfileEnd != null)
+			bytes += (Long)sendfileEnd - (Long)request.getAttribute(Globals.SENDFILE_FILE_START_ATTR);
+		rm.record(System.nanoTime() - response.mStart, !ok || response.getStatus() >= 500, bytes);
+	}
+	
+	/**
+	 * Write all metrics in the Prometheus text exposition format
+	 * @param w Destination
+	 * @throws IOException
+	 */
+	public void writePrometheus(Writer w) throws IOException {
+		final List<RouteMetrics> routes = getRoutes();
+		Collections.sort(routes, new Comparator<RouteMetrics>() {
+			@Override
+			public int compare(RouteMetrics a, RouteMetrics b) {
+				int c = a.mServlet.compareTo(b.mServlet);
+				if (c == 0)
+					c = a.mRoute.compareTo(b.mRoute);
+				return c != 0 ? c : a.mMethod.compareTo(b.mMethod);
+			}
+		});
+		
+		final StringBuilder sb = new StringBuilder(routes.size() * 1024 + 1024);
+		sb.append("# HELP http_requests_total Requests handled.\n# TYPE http_requests_total counter\n");
+		for (RouteMetrics rm:routes)
+			appendSample(sb, "http_requests_total", rm, null, rm.getRequests());
+		sb.append("# HELP http_request_errors_total Requests which failed or had a 5xx status.\n# TYPE http_request_errors_total counter\n");
+		for (RouteMetrics rm:routes)
+			appendSample(sb, "http_request_errors_total", rm, null, rm.getErrors());
+		sb.append("# HELP http_response_bytes_total Bytes of response bodies written.\n# TYPE http_response_bytes_total counter\n");
+		for (RouteMetrics rm:routes)
+			appendSample(sb, "http_response_bytes_total", rm, null, rm.getBytes());
+		sb.append("# HELP http_request_duration_seconds Request latency.\n# TYPE http_request_duration_seconds histogram\n");
+		for (RouteMetrics rm:routes)
+			appendHistogram(sb, "http_request_duration_seconds", rm, rm.getLatency(), BUCKET_BOUNDS, 1e9);
+		sb.append("# HELP http_request_allocated_bytes Bytes allocated by the request thread, for sampled requests.\n# TYPE http_request_allocated_bytes histogram\n");
+		for (RouteMetrics rm:routes)
+		{
+			if (rm.getAllocated().getCount() > 0)
+				appendHistogram(sb, "http_request_allocated_bytes", rm, rm.getAllocated(), ALLOCATION_BOUNDS, 1);
+		}
+		
+		final List<String> names = new ArrayList<String>(_gauges.keySet());
+		Collections.sort(names);
+		for (String name:names)
+		{
+			final Object [] g = _gauges.get(name);
+			sb.append("# HELP ").append(name).append(' ').append(g[0]).append("\n# TYPE ").append(name).append(" gauge\n");
+			sb.append(name).append(' ').append(formatDouble(((Gauge)g[1]).getValue())).append('\n');
+		}
+		w.write(sb.toString());
+	}
+	
+	// cumulative buckets, sum and count of a histogram, whose values are 'scale' times the published unit
+	private static void appendHistogram(StringBuilder sb, String name, RouteMetrics rm, LatencyHistogram h, double [] bounds, double scale) {
+		final long count = h.getCount();
+		for (double bound:bounds)
+			appendSample(sb, name + "_bucket", rm, formatDouble(bound), h.getCountAtOrBelow((long)(bound * scale)));
+		appendSample(sb, name + "_bucket", rm, "+Inf", count);
+		appendSample(sb, name + "_sum", rm, null, h.getSum() / scale);
+		appendSample(sb, name + "_count", rm, null, count);
+	}
+	
+	private static void appendSample(StringBuilder sb, String name, RouteMetrics rm, String le, double value) {
+		sb.append(name).append("{servlet=\"");
+		escapeLabel(sb, rm.mServlet);
+		sb.append("\",method=\"");
+		escapeLabel(sb, rm.mMethod);
+		sb.append("\",route=\"");
+		escapeLabel(sb, rm.mRoute);
+		if (le != null)
+			sb.append("\",le=\"").append(le);
+		sb.append("\"} ").append(formatDouble(value)).append('\n');
+	}
+	
+	private static void escapeLabel(StringBuilder sb, String value) {
+		for (int i=0;i<value.length();i++)
+		{
+			final char c = value.charAt(i);
+			if (c == '\\' || c == '"')
+				sb.append('\\').append(c);
+			else if (c == '\n')
+				sb.append("\\n");
+			else
+				sb.append(c);
+		}
+	}
+	
+	private static String formatDouble(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long)value);
+		return Double.toString(value);
+	}
+}
@@ -0,0 +1,51 @@
+package com.ilsian.tomcat;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet that publishes request metrics in the Prometheus text format, for example
+ * registered with WebServer.registerServlet(new MetricsServlet(), "METRICS", new String[]{"/metrics"}).
+ * Metrics may reveal how the application is used, so map this where only monitoring can
+ * reach it.
+ * @author justin
+ *
+ */
+public class MetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+	private final MetricsRegistry _registry;	// The metrics we publish
+	
+	/**
+	 * Constructor.  Create a servlet for the default registry.
+	 */
+	public MetricsServlet() {
+		this(MetricsRegistry.getDefault());
+	}
+	
+	/**
+	 * Constructor.  Create a metrics servlet.
+	 * @param registry The metrics to publish
+	 */
+	public MetricsServlet(MetricsRegistry registry) {
+		_registry = registry;
+	}
+	
+	/**
+	 * Handle HTTP Get requests with the current metrics
+	 * @param request - The HTTP request
+	 * @param response - The HTTP response
+	 */
+	@Override
+	protected void doGet(HttpServletRequest request, 
+			HttpServletResponse response) throws ServletException, IOException {
+		response.setContentType("text/plain; version=0.0.4");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		_registry.writePrometheus(response.getWriter());
+	}
+}
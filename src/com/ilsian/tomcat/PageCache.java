@@ -0,0 +1,131 @@
+package com.ilsian.tomcat;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * PageCache - A small, time limited cache of rendered template pages.  Pages are keyed by
+ * template name, the requesting user's security level and the values of a chosen set of
+ * URL parameters, so only pages whose content depends on nothing more than those may be
+ * cached.  Each entry holds the encoded page and, when worthwhile, a gzip copy.
+ * @author justin
+ *
+ */
+public class PageCache {
+
+	/**
+	 * A single rendered page, immutable once created.
+	 */
+	public static class Entry extends StaticResourceCache.Entry {
+		public final String mContentType;	///< Mime type of the page
+		public final long mExpires;			///< Time the entry expires, in milliseconds
+		
+		public Entry(byte[] data, byte[] gzipData, String contentType, long expires) {
+			super(data, gzipData);
+			mContentType = contentType;
+			mExpires = expires;
+		}
+	}
+	
+	private final long _ttl;				// time to live of each page, in milliseconds
+	private final int _maxEntries;			// maximum number of pages held
+	private final String [] _keyParams;		// URL params which select page content
+	private long _hits = 0;					// number of lookups satisfied by the cache
+	private long _misses = 0;				// number of lookups not satisfied by the cache
+	
+	// access ordered, so the least recently used page is evicted first
+	private final LinkedHashMap<String, Entry> _entries;
+	
+	/**
+	 * Constructor.  Create a page cache.
+	 * @param ttl Time to live of each page, in milliseconds
+	 * @param maxEntries Maximum number of pages held
+	 * @param keyParams URL params whose values select page content
+	 */
+	public PageCache(long ttl, final int maxEntries, String... keyParams) {
+		_ttl = ttl;
+		_maxEntries = maxEntries;
+		_keyParams = keyParams != null ? keyParams : new String[0];
+		_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PageCache.Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+	
+	/**
+	 * Build the cache key of a request
+	 * @param templateName Template being rendered
+	 * @param user The requesting user, or null
+	 * @param request The HTTP request
+	 * @return The key
+	 */
+	public String createKey(String templateName, UserInfo user, HttpServletRequest request) {
+		return WebLib.buildRequestKey(templateName, user, request, _keyParams);
+	}
+	
+	/**
+	 * Lookup a page, discarding it if it has expired
+	 * @param key Key from createKey
+	 * @return The page or null if not cached
+	 */
+	public synchronized Entry get(String key) {
+		Entry e = _entries.get(key);
+		if (e != null && e.mExpires <= System.currentTimeMillis())
+		{
+			_entries.remove(key);
+			e = null;
+		}
+		if (e != null)
+			_hits++;
+		else
+			_misses++;
+		return e;
+	}
+	
+	/**
+	 * Store a rendered page, compressing it if the content type benefits
+	 * @param key Key from createKey
+	 * @param data Encoded page
+	 * @param contentType Mime type of the page
+	 * @return The new entry
+	 * @throws IOException
+	 */
+	public Entry put(String key, byte[] data, String contentType) throws IOException {
+		// compress outside the lock, it is by far the slowest part
+		final StaticResourceCache.Entry content = StaticResourceCache.createEntry(data, contentType);
+		final Entry e = new Entry(content.mData, content.mGzipData, contentType, System.currentTimeMillis() + _ttl);
+		synchronized (this) {
+			_entries.put(key, e);
+		}
+		return e;
+	}
+	
+	/**
+	 * Remove all pages, for example after the underlying data changes.
+	 */
+	public synchronized void clear() {
+		_entries.clear();
+	}
+	
+	public synchronized int getEntryCount() {
+		return _entries.size();
+	}
+	
+	public int getMaxEntries() {
+		return _maxEntries;
+	}
+	
+	public synchronized long getHits() {
+		return _hits;
+	}
+	
+	public synchronized long getMisses() {
+		return _misses;
+	}
+}
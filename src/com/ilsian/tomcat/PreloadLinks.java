@@ -0,0 +1,67 @@
+package com.ilsian.tomcat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.ilsian.commonweb.res.Loader;
+
+import freemarker.template.Configuration;
+
+/**
+ * PreloadLinks - The value of a 'Link: rel=preload' header for a set of asset URLs.  The
+ * Loader.COMMON_ASSETS marker stands for the common stylesheets and scripts, and is
+ * resolved against the configuration's published bundles whenever the header is needed,
+ * so it always agrees with what CommonJsCss.ftl includes no matter when bundles are
+ * published.  The header is rebuilt only when a bundle URL changes.
+ *
+ * @author justin
+ *
+ */
+class PreloadLinks {
+
+	private final String [] _urls;			// asset URLs, possibly including the common assets marker
+	private final boolean _common;			// true if the common assets are included
+	private final String _fixed;			// header value when the common assets are not included
+	private volatile Object [] _resolved;	// common css bundle, js bundle and header value last built
+	
+	/**
+	 * Constructor.
+	 * @param urls Asset URLs, Loader.COMMON_ASSETS for the common stylesheets and scripts
+	 */
+	PreloadLinks(String... urls) {
+		_urls = urls != null ? urls : new String[0];
+		_common = Arrays.asList(_urls).contains(Loader.COMMON_ASSETS);
+		_fixed = _common ? null : WebLib.buildPreloadLinkHeader(_urls);
+	}
+	
+	/**
+	 * Get the header value
+	 * @param c Configuration the page is rendered with
+	 * @return The Link header value, or null if there are no assets
+	 */
+	String getHeader(Configuration c) {
+		if (!_common)
+			return _fixed;
+		
+		final Map<String, String> published = Loader.getPublishedBundles(c);
+		final String css = published.get(Loader.COMMON_CSS_BUNDLE);
+		final String js = published.get(Loader.COMMON_JS_BUNDLE);
+		Object [] resolved = _resolved;
+		if (resolved == null || resolved[0] != css || resolved[1] != js)
+		{
+			final List<String> urls = new ArrayList<String>();
+			for (String url:_urls)
+			{
+				if (url.equals(Loader.COMMON_ASSETS))
+					urls.addAll(Arrays.asList(Loader.getCommonAssetUrls(c)));
+				else
+					urls.add(url);
+			}
+			resolved = new Object[] { css, js, WebLib.buildPreloadLinkHeader(urls.toArray(new String[urls.size()])) };
+			_resolved = resolved;
+		}
+		return (String)resolved[2];
+	}
+}
@@ -0,0 +1,167 @@
+package com.ilsian.tomcat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * ProfilingActionHandler - An admin only handler which records the server with Java
+ * Flight Recorder for a few seconds and sends back the .jfr file, to profile production
+ * under real load without attaching tools.  For example
+ * 
+ *   app.addGetHandler("profile", new ProfilingActionHandler());
+ *   curl -o app.jfr 'https://server/app?action=profile&seconds=60&settings=profile'
+ * 
+ * Params are 'seconds' (default 30, at most MAX_SECONDS) and 'settings', the Flight Recorder
+ * configuration: 'default' for low overhead or 'profile' (the default) for more detail.
+ * The request waits asynchronously while recording, so no container thread is held, and
+ * only one recording runs at a time.  Flight Recorder is reached by reflection, since it
+ * is not part of the Java 8 API; JVMs without it respond 501.
+ * 
+ * @author justin
+ *
+ */
+public class ProfilingActionHandler implements AsyncActionHandler
+{
+	static Logger logger = java.util.logging.Logger.getLogger(ProfilingActionHandler.class.getCanonicalName());
+	
+	public static final int DEFAULT_SECONDS = 30;
+	public static final int MAX_SECONDS = 300;
+	
+	private static final AtomicBoolean sRecording = new AtomicBoolean(false);	// one recording at a time
+	private static ScheduledExecutorService sTimer = null;
+	
+	@Override
+	public CompletionStage<?> handleActionAsync(String action, UserInfo user, HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+		final CompletableFuture<Object> done = new CompletableFuture<Object>();
+		if (user == null || user.mLevel < UserInfo.kLoginAdmin)
+		{
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			done.complete(null);
+			return done;
+		}
+		
+		final int seconds = Math.max(1, Math.min(MAX_SECONDS, WebLib.getIntParam(request, "seconds", DEFAULT_SECONDS)));
+		final String settings = "default".equals(request.getParameter("settings")) ? "default" : "profile";
+		if (!sRecording.compareAndSet(false, true))
+		{
+			response.sendError(HttpServletResponse.SC_CONFLICT, "A recording is already running");
+			done.complete(null);
+			return done;
+		}
+		
+		final Object recording;
+		try {
+			recording = startRecording(settings);
+		} catch (Exception e) {
+			sRecording.set(false);
+			logger.log(Level.FINE, "Profiling: unable to start recording", e);
+			response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, "Flight Recorder is not available");
+			done.complete(null);
+			return done;
+		}
+		logger.info(String.format("Profiling: %s started a %ds '%s' recording", user.mUsername, seconds, settings));
+		
+		getTimer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sendRecording(recording, response);
+					done.complete(null);
+				} catch (Throwable e) {
+					done.completeExceptionally(e);
+				} finally {
+					sRecording.set(false);
+				}
+			}
+		}, seconds, TimeUnit.SECONDS);
+		return done;
+	}
+	
+	/**
+	 * @return Long enough for the longest recording to be sent
+	 */
+	@Override
+	public long getTimeout() {
+		return (MAX_SECONDS + 60) * 1000L;
+	}
+	
+	// start a recording with a named configuration
+	private static Object startRecording(String settings) throws ReflectiveOperationException {
+		final Class<?> configCls = Class.forName("jdk.jfr.Configuration");
+		final Class<?> recordingCls = Class.forName("jdk.jfr.Recording");
+		final Object config = configCls.getMethod("getConfiguration", String.class).invoke(null, settings);
+		final Object recording = recordingCls.getConstructor(configCls).newInstance(config);
+		recordingCls.getMethod("setName", String.class).invoke(recording, "ProfilingActionHandler");
+		recordingCls.getMethod("start").invoke(recording);
+		return recording;
+	}
+	
+	// stop a recording and send it as the response
+	private static void sendRecording(Object recording, HttpServletResponse response) throws IOException, ReflectiveOperationException {
+		final Class<?> recordingCls = recording.getClass();
+		final Path file = Files.createTempFile("profile", ".jfr");
+		try {
+			recordingCls.getMethod("stop").invoke(recording);
+			recordingCls.getMethod("dump", Path.class).invoke(recording, file);
+			
+			final String name = "profile-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".jfr";
+			response.setContentType("application/octet-stream");
+			response.setHeader("Content-Disposition", "attachment; filename=\"" + name + "\"");
+			response.setContentLengthLong(Files.size(file));
+			final OutputStream out = response.getOutputStream();
+			final InputStream in = Files.newInputStream(file);
+			try {
+				final byte[] buf = new byte[64*1024];
+				int len;
+				while ((len = in.read(buf)) != -1)
+					out.write(buf, 0, len);
+			} finally {
+				in.close();
+			}
+			out.flush();
+		} catch (InvocationTargetException e) {
+			throw new IOException("Recording failed", e.getCause());
+		} finally {
+			try {
+				recordingCls.getMethod("close").invoke(recording);
+			} catch (ReflectiveOperationException e) {
+				// nothing more to release
+			}
+			Files.deleteIfExists(file);
+		}
+	}
+	
+	private static synchronized ScheduledExecutorService getTimer() {
+		if (sTimer == null)
+		{
+			sTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "ProfilingActionHandler");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return sTimer;
+	}
+}
@@ -0,0 +1,146 @@
+package com.ilsian.tomcat;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * RequestCoalescer - Single-flight execution of identical requests.  While a request is
+ * being handled, identical requests (same key) arriving meanwhile don't run the handler
+ * again; they wait for the first one and are sent a copy of its response.  Nothing is
+ * kept once the first request completes, so this never serves stale responses.  Waiting
+ * requests give up after a timeout and are answered 503, so a hung request can't hold
+ * every identical one.
+ * 
+ * Keys are built from the action or template name, the user's security level, the values
+ * of a chosen set of params, and whether the client accepts gzip.  Only handlers whose
+ * response depends on nothing else should be coalesced.
+ * 
+ * @author justin
+ *
+ */
+public class RequestCoalescer {
+
+	public static final long DEFAULT_WAIT_TIMEOUT = 30000;	// milliseconds
+	
+	/**
+	 * The work of the first request for a key, which renders into a capturing response.
+	 */
+	public interface Work {
+		public void handle(HttpServletResponse capture) throws ServletException, IOException;
+	}
+	
+	private final String [] _keyParams;		// params which select response content
+	private volatile long _waitTimeout = DEFAULT_WAIT_TIMEOUT;	// milliseconds to wait for an identical request
+	private final ConcurrentHashMap<String, CompletableFuture<CapturingResponse.Result>> _inFlight = 
+			new ConcurrentHashMap<String, CompletableFuture<CapturingResponse.Result>>();
+	private final AtomicLong _executed = new AtomicLong();	// requests that ran the handler
+	private final AtomicLong _coalesced = new AtomicLong();	// requests that shared another's result
+	
+	/**
+	 * Constructor.  Create a coalescer.
+	 * @param keyParams Names of the params that select response content
+	 */
+	public RequestCoalescer(String... keyParams) {
+		_keyParams = keyParams != null ? keyParams : new String[0];
+	}
+	
+	/**
+	 * Set how long a request waits for the identical request being handled
+	 * @param millis Milliseconds to wait before answering 503
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public RequestCoalescer setWaitTimeout(long millis) {
+		_waitTimeout = millis;
+		return this;
+	}
+	
+	/**
+	 * Build the coalescing key of a request
+	 * @param name Action or template name
+	 * @param user The requesting user, or null
+	 * @param request The HTTP request
+	 * @return The key
+	 */
+	public String createKey(String name, UserInfo user, HttpServletRequest request) {
+		// responses may be encoded for the client, so those that differ can't share
+		return WebLib.buildRequestKey(name, user, request, _keyParams) + (WebLib.acceptsEncoding(request, "gzip") ? "\0gz" : "\0id");
+	}
+	
+	/**
+	 * Handle a request, or share the response of an identical one already being handled
+	 * @param key Key from createKey
+	 * @param response The response to send the result to
+	 * @param work The handler work, run only if no identical request is in flight
+	 * @throws ServletException If the handling request failed
+	 * @throws IOException If the handling request failed
+	 */
+	public void execute(String key, HttpServletResponse response, Work work) throws ServletException, IOException {
+		final CompletableFuture<CapturingResponse.Result> mine = new CompletableFuture<CapturingResponse.Result>();
+		final CompletableFuture<CapturingResponse.Result> inFlight = _inFlight.putIfAbsent(key, mine);
+		CapturingResponse.Result result;
+		if (inFlight == null)
+		{
+			_executed.incrementAndGet();
+			try {
+				final CapturingResponse capture = new CapturingResponse(response);
+				work.handle(capture);
+				result = capture.getResult();
+				mine.complete(result);
+			} catch (ServletException | IOException | RuntimeException | Error e) {
+				mine.completeExceptionally(e);
+				throw e;
+			} finally {
+				_inFlight.remove(key, mine);
+			}
+		}
+		else
+		{
+			_coalesced.incrementAndGet();
+			try {
+				result = inFlight.get(_waitTimeout, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Timed out waiting for an identical request");
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for a coalesced request");
+			} catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof ServletException)
+					throw new ServletException(cause.getMessage(), cause);
+				throw new IOException("Coalesced request failed: " + cause.getMessage(), cause);
+			}
+		}
+		result.replay(response);
+	}
+	
+	/**
+	 * @return Number of requests which ran the handler
+	 */
+	public long getExecutedCount() {
+		return _executed.get();
+	}
+	
+	/**
+	 * @return Number of requests which shared the response of another
+	 */
+	public long getCoalescedCount() {
+		return _coalesced.get();
+	}
+	
+	/**
+	 * @return Number of keys currently being handled
+	 */
+	public int getInFlightCount() {
+		return _inFlight.size();
+	}
+}
@@ -0,0 +1,164 @@
+package com.ilsian.tomcat;
+
+/**
+ * RequestTrace - A timeline of where the time of a request went, by phase.  Each thread
+ * has one record which is reset at the start of every request, so tracing allocates
+ * nothing; code marks a phase with the System.nanoTime() it started at, and the time
+ * since is added to the phase.  Marks on a thread that is not serving a traced request
+ * are ignored, so shared code (such as StreamingTemplateWriter) may always mark.
+ * 
+ * Only the thread which started the request is traced, so work done by async handlers
+ * after their handler returns is not assigned to a phase; a request which goes async is
+ * detached from its thread and ended when its response completes, so that work counts
+ * as 'other'.
+ * 
+ * @author justin
+ *
+ */
+public class RequestTrace {
+
+	/**
+	 * The phases of a request
+	 */
+	public enum Phase {
+		AUTH("auth"),			///< UserSecurity.getUserInfo
+		DATA("data"),			///< createDataMap and the global data model
+		FACTORY("factory"),		///< TemplateDataFactory data
+		RENDER("render"),		///< Template lookup and processing, less socket writes
+		WRITE("write");			///< Writing the response to the socket
+		
+		final String mLabel;
+		
+		Phase(String label) {
+			mLabel = label;
+		}
+	}
+	
+	private static final ThreadLocal<RequestTrace> sTrace = new ThreadLocal<RequestTrace>() {
+		@Override
+		protected RequestTrace initialValue() {
+			return new RequestTrace();
+		}
+	};
+	
+	private final long [] _nanos = new long[Phase.values().length];
+	private boolean _active = false;
+	private long _start;
+	private long _end;
+	private int _userLevel;
+	
+	private RequestTrace() {
+	}
+	
+	/**
+	 * Start tracing a request on this thread, discarding any previous trace
+	 * @return The thread's trace
+	 */
+	public static RequestTrace begin() {
+		final RequestTrace trace = sTrace.get();
+		for (int i=0;i<trace._nanos.length;i++)
+			trace._nanos[i] = 0;
+		trace._userLevel = -1;
+		trace._active = true;
+		trace._start = System.nanoTime();
+		return trace;
+	}
+	
+	/**
+	 * @return The trace of this thread, which ignores marks unless a request is being traced
+	 */
+	public static RequestTrace current() {
+		return sTrace.get();
+	}
+	
+	/**
+	 * Add the time since a phase started to the phase
+	 * @param phase The phase
+	 * @param since System.nanoTime() when the phase started
+	 * @return The current System.nanoTime(), to start the next phase
+	 */
+	public long mark(Phase phase, long since) {
+		final long now = System.nanoTime();
+		if (_active)
+			_nanos[phase.ordinal()] += now - since;
+		return now;
+	}
+	
+	/**
+	 * Add time to a phase
+	 * @param phase The phase
+	 * @param nanos Time to add
+	 */
+	public void add(Phase phase, long nanos) {
+		if (_active)
+			_nanos[phase.ordinal()] += nanos;
+	}
+	
+	/**
+	 * @param phase The phase
+	 * @return Time spent in the phase so far, in nanoseconds
+	 */
+	public long get(Phase phase) {
+		return _nanos[phase.ordinal()];
+	}
+	
+	/**
+	 * Stop tracing the request
+	 * @return Total time of the request, in nanoseconds
+	 */
+	public long end() {
+		_active = false;
+		_end = System.nanoTime();
+		return getElapsed();
+	}
+	
+	/**
+	 * Stop tracing the request on this thread, as it continues asynchronously
+	 * @return A copy of the trace, to be ended when the request completes
+	 */
+	public RequestTrace detach() {
+		final RequestTrace copy = new RequestTrace();
+		System.arraycopy(_nanos, 0, copy._nanos, 0, _nanos.length);
+		copy._start = _start;
+		copy._userLevel = _userLevel;
+		_active = false;
+		_end = System.nanoTime();
+		return copy;
+	}
+	
+	/**
+	 * @return Total time of the request so far (or until it ended), in nanoseconds
+	 */
+	public long getElapsed() {
+		return (_active ? System.nanoTime() : _end) - _start;
+	}
+	
+	/**
+	 * @return Security level of the requesting user, or -1 if not known
+	 */
+	public int getUserLevel() {
+		return _userLevel;
+	}
+	
+	public void setUserLevel(int level) {
+		_userLevel = level;
+	}
+	
+	/**
+	 * Describe the time of each phase, plus the time not in any phase (e.g. in handlers)
+	 * as 'other', for example 'auth=0.12ms data=0.40ms ... other=1.02ms'
+	 * @return The description
+	 */
+	public String formatPhases() {
+		final StringBuilder sb = new StringBuilder(128);
+		long other = getElapsed();
+		for (Phase p:Phase.values())
+		{
+			final long nanos = _nanos[p.ordinal()];
+			other -= nanos;
+			sb.append(p.mLabel).append('=').append(String.format("%.2f", nanos / 1e6)).append("ms ");
+		}
+		sb.append("other=").append(String.format("%.2f", Math.max(other, 0) / 1e6)).append("ms");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,206 @@
+package com.ilsian.tomcat;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * RouteTable - An immutable table of handlers, looked up by exact name (e.g. the value of
+ * an 'action' parameter) or by matching a request path against path templates such as
+ * '/gui/orders/{id}'.  Path templates are kept in a trie of path segments; a literal
+ * segment takes precedence over a '{variable}' segment at the same position.
+ * 
+ * Tables are never modified once built.  Adding a route returns a new table, so a table
+ * can be published through a volatile field and read by any number of threads without
+ * locking.
+ * 
+ * @author justin
+ *
+ * @param <H> Handler type
+ */
+public class RouteTable<H> {
+
+	/**
+	 * The result of matching a path: the handler and the values of the path variables.
+	 */
+	public static class Match<H> {
+		public final H mHandler;					///< Handler of the matching template
+		public final String mPattern;				///< The matching path template
+		public final Map<String, String> mVariables;	///< Path variable values by name
+		
+		Match(H handler, String pattern, Map<String, String> variables) {
+			mHandler = handler;
+			mPattern = pattern;
+			mVariables = variables;
+		}
+	}
+	
+	// a node of the path trie, one per path segment
+	static class Node<H> {
+		final HashMap<String, Node<H>> mLiterals = new HashMap<String, Node<H>>();
+		Node<H> mVariable = null;		// child matching any segment
+		String mVariableName = null;	// name the segment is bound to
+		H mHandler = null;				// handler of a template ending here
+		String mPattern = null;			// the template ending here
+		
+		Node<H> copy() {
+			final Node<H> n = new Node<H>();
+			for (Map.Entry<String, Node<H>> e:mLiterals.entrySet())
+				n.mLiterals.put(e.getKey(), e.getValue().copy());
+			n.mVariable = mVariable != null ? mVariable.copy() : null;
+			n.mVariableName = mVariableName;
+			n.mHandler = mHandler;
+			n.mPattern = mPattern;
+			return n;
+		}
+	}
+	
+	private final Map<String, H> _names;	// handlers by exact name
+	private final Node<H> _root;			// path template trie, null when there are none
+	
+	/**
+	 * Constructor.  Create an empty table.
+	 */
+	public RouteTable() {
+		this(Collections.<String, H>emptyMap(), null);
+	}
+	
+	private RouteTable(Map<String, H> names, Node<H> root) {
+		_names = names;
+		_root = root;
+	}
+	
+	/**
+	 * Lookup a handler by exact name
+	 * @param name Name of the handler
+	 * @return The handler or null if none is registered
+	 */
+	public H get(String name) {
+		return name != null ? _names.get(name) : null;
+	}
+	
+	/**
+	 * @return True if the table has any path templates
+	 */
+	public boolean hasPaths() {
+		return _root != null;
+	}
+	
+	/**
+	 * Create a table with an additional (or replaced) named handler
+	 * @param name Name of the handler
+	 * @param handler The handler
+	 * @return The new table
+	 */
+	public RouteTable<H> withName(String name, H handler) {
+		final HashMap<String, H> names = new HashMap<String, H>(_names);
+		names.put(name, handler);
+		return new RouteTable<H>(Collections.unmodifiableMap(names), _root);
+	}
+	
+	/**
+	 * Create a table with an additional (or replaced) path template
+	 * @param pattern Path template, e.g. '/gui/orders/{id}'
+	 * @param handler The handler
+	 * @return The new table
+	 * @throws IllegalArgumentException If the template conflicts with another, e.g. uses a
+	 * different variable name at the same position
+	 */
+	public RouteTable<H> withPath(String pattern, H handler) {
+		final Node<H> root = _root != null ? _root.copy() : new Node<H>();
+		Node<H> n = root;
+		for (String seg:pattern.split("/"))
+		{
+			if (seg.isEmpty())
+				continue;
+			if (seg.startsWith("{") && seg.endsWith("}"))
+			{
+				final String var = seg.substring(1, seg.length() - 1);
+				if (n.mVariable == null)
+				{
+					n.mVariable = new Node<H>();
+					n.mVariableName = var;
+				}
+				else if (!n.mVariableName.equals(var))
+					throw new IllegalArgumentException(String.format("Path template %s conflicts with variable {%s}", pattern, n.mVariableName));
+				n = n.mVariable;
+			}
+			else
+			{
+				Node<H> child = n.mLiterals.get(seg);
+				if (child == null)
+				{
+					child = new Node<H>();
+					n.mLiterals.put(seg, child);
+				}
+				n = child;
+			}
+		}
+		n.mHandler = handler;
+		n.mPattern = pattern;
+		return new RouteTable<H>(_names, root);
+	}
+	
+	/**
+	 * Match a request path against the path templates
+	 * @param path Request path, e.g. '/gui/orders/42'
+	 * @return The match, or null if no template matches
+	 */
+	public Match<H> match(String path) {
+		if (_root == null || path == null)
+			return null;
+		final String [] segs = path.split("/");
+		final String [] values = new String[segs.length];
+		final Node<H> n = match(_root, segs, 0, values);
+		if (n == null)
+			return null;
+		
+		// walk the matched route again to name the captured values
+		Map<String, String> vars = Collections.emptyMap();
+		Node<H> walk = _root;
+		for (int i=0;i<segs.length;i++)
+		{
+			if (segs[i].isEmpty())
+				continue;
+			if (values[i] == null)
+				walk = walk.mLiterals.get(segs[i]);
+			else
+			{
+				if (vars.isEmpty())
+					vars = new HashMap<String, String>(4);
+				vars.put(walk.mVariableName, values[i]);
+				walk = walk.mVariable;
+			}
+		}
+		return new Match<H>(n.mHandler, n.mPattern, Collections.unmodifiableMap(vars));
+	}
+	
+	// depth first match, preferring literals; values[i] is set for segments bound to variables
+	private static <H> Node<H> match(Node<H> n, String [] segs, int i, String [] values) {
+		while (i < segs.length && segs[i].isEmpty())
+			i++;
+		if (i == segs.length)
+			return n.mHandler != null ? n : null;
+		
+		final Node<H> lit = n.mLiterals.get(segs[i]);
+		if (lit != null)
+		{
+			final Node<H> found = match(lit, segs, i + 1, values);
+			if (found != null)
+			{
+				values[i] = null;
+				return found;
+			}
+		}
+		if (n.mVariable != null)
+		{
+			final Node<H> found = match(n.mVariable, segs, i + 1, values);
+			if (found != null)
+			{
+				values[i] = segs[i];
+				return found;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,174 @@
+package com.ilsian.tomcat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A size bounded, least-recently-used memory cache of static resources.  Each entry keeps
+ * the raw bytes of the resource and, for compressible content, a precompressed gzip copy
+ * so a resource is read and compressed only once no matter how often it is served.
+ * @author justin
+ *
+ */
+public class StaticResourceCache {
+
+	/**
+	 * A single cached resource, immutable once created.
+	 */
+	public static class Entry {
+		public final byte[] mData;			///< Identity encoded resource bytes
+		public final byte[] mGzipData;		///< Gzip encoded resource bytes, or null if not worth compressing
+
+		public Entry(byte[] data, byte[] gzipData) {
+			mData = data;
+			mGzipData = gzipData;
+		}
+
+		/**
+		 * @return Total bytes held by this entry
+		 */
+		public long getSize() {
+			return mData.length + (mGzipData != null ? mGzipData.length : 0);
+		}
+	}
+
+	private final long _maxBytes;		// maximum bytes held by all entries
+	private long _currentBytes = 0;		// bytes currently held by all entries
+	private long _hits = 0;				// number of lookups satisfied by the cache
+	private long _misses = 0;			// number of lookups not satisfied by the cache
+
+	// access ordered, so iteration begins with the least recently used entry
+	private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(32, 0.75f, true);
+
+	/**
+	 * Constructor.  Create a resource cache.
+	 * @param maxBytes Maximum number of bytes (identity plus compressed copies) to hold
+	 */
+	public StaticResourceCache(long maxBytes) {
+		_maxBytes = maxBytes;
+	}
+
+	/**
+	 * Lookup a cached resource.
+	 * @param name Resource name
+	 * @return The cached entry or null if not cached
+	 */
+	public synchronized Entry get(String name) {
+		final Entry e = _entries.get(name);
+		if (e != null)
+			_hits++;
+		else
+			_misses++;
+		return e;
+	}
+
+	/**
+	 * Add a resource to the cache, evicting the least recently used entries as
+	 * needed to remain under the size limit.  Resources larger than the entire
+	 * cache are not stored.
+	 * @param name Resource name
+	 * @param e Entry to store
+	 */
+	public synchronized void put(String name, Entry e) {
+		if (e.getSize() > _maxBytes)
+			return;
+
+		final Entry old = _entries.put(name, e);
+		if (old != null)
+			_currentBytes -= old.getSize();
+		_currentBytes += e.getSize();
+
+		final Iterator<Map.Entry<String, Entry>> it = _entries.entrySet().iterator();
+		while (_currentBytes > _maxBytes && it.hasNext())
+		{
+			final Map.Entry<String, Entry> eldest = it.next();
+			_currentBytes -= eldest.getValue().getSize();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Remove a resource from the cache.
+	 * @param name Resource name
+	 */
+	public synchronized void remove(String name) {
+		final Entry old = _entries.remove(name);
+		if (old != null)
+			_currentBytes -= old.getSize();
+	}
+
+	/**
+	 * Remove all resources from the cache.
+	 */
+	public synchronized void clear() {
+		_entries.clear();
+		_currentBytes = 0;
+	}
+
+	public synchronized long getSizeBytes() {
+		return _currentBytes;
+	}
+
+	public synchronized int getEntryCount() {
+		return _entries.size();
+	}
+
+	public synchronized long getHits() {
+		return _hits;
+	}
+
+	public synchronized long getMisses() {
+		return _misses;
+	}
+
+	/**
+	 * Create a cache entry, including a gzip copy when the content type is compressible
+	 * and compression actually saves space.
+	 * @param data Raw resource bytes
+	 * @param contentType Mime type of the resource
+	 * @return A new cache entry
+	 * @throws IOException
+	 */
+	public static Entry createEntry(byte[] data, String contentType) throws IOException {
+		byte[] gz = null;
+		if (isCompressible(contentType))
+		{
+			gz = gzip(data);
+			if (gz.length >= data.length)
+				gz = null;
+		}
+		return new Entry(data, gz);
+	}
+
+	/**
+	 * Determine if a content type benefits from compression.  Images (other than svg)
+	 * and fonts other than ttf are already compressed.
+	 */
+	public static boolean isCompressible(String contentType) {
+		return contentType != null && (contentType.startsWith("text/")
+				|| contentType.equals("application/json")
+				|| contentType.equals("image/svg+xml")
+				|| contentType.equals("image/x-icon")
+				|| contentType.equals("application/x-font-ttf"));
+	}
+
+	/**
+	 * Gzip a block of data.
+	 * @param data Data to compress
+	 * @return Compressed data
+	 * @throws IOException
+	 */
+	static byte[] gzip(byte[] data) throws IOException {
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2 + 64);
+		final GZIPOutputStream gos = new GZIPOutputStream(bos) {
+			{ def.setLevel(java.util.zip.Deflater.BEST_COMPRESSION); }
+		};
+		gos.write(data);
+		gos.close();
+		return bos.toByteArray();
+	}
+}
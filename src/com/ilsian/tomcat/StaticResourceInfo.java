@@ -0,0 +1,109 @@
+package com.ilsian.tomcat;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * StaticResourceInfo - Metadata about a resolved static resource, used to answer
+ * conditional requests without opening the resource itself.
+ * @author justin
+ *
+ */
+public class StaticResourceInfo {
+
+	public final String mName;			///< Resource name
+	public final Class<?> mOwner;		///< Class who shares a path with the resource, null for files
+	public final String mContentType;	///< Mime type of the resource
+	public final long mLength;			///< Resource length in bytes
+	public final long mLastModified;	///< Last modified time, rounded down to seconds, or -1 if unknown
+	public final String mETag;			///< Strong entity tag for the identity encoding
+	public final String mGzipETag;		///< Strong entity tag for the gzip encoding
+
+	public StaticResourceInfo(String name, Class<?> owner, String contentType, long length, long lastModified, String hash) {
+		mName = name;
+		mOwner = owner;
+		mContentType = contentType;
+		mLength = length;
+		mLastModified = lastModified > 0 ? (lastModified / 1000) * 1000 : -1;
+		mETag = "\"" + hash + "\"";
+		mGzipETag = "\"" + hash + "-gz\"";
+	}
+
+	/**
+	 * Determine if an If-None-Match header matches this resource. Comparison is weak,
+	 * so a tag for either content encoding matches.
+	 * @param ifNoneMatch Value of the If-None-Match header
+	 * @return true if any listed tag matches
+	 */
+	public boolean matchesETag(String ifNoneMatch) {
+		for (String tag:ifNoneMatch.split(","))
+		{
+			tag = tag.trim();
+			if (tag.startsWith("W/"))
+				tag = tag.substring(2);
+			if (tag.equals("*") || tag.equals(mETag) || tag.equals(mGzipETag))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Compute a content hash suitable for use in an entity tag
+	 * @param data Resource content
+	 * @return Hex encoded hash (128 bits of SHA-1)
+	 */
+	public static String hashContent(byte[] data) {
+		return hashContent(ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * Compute a content hash suitable for use in an entity tag
+	 * @param data Resource content, which is consumed
+	 * @return Hex encoded hash (128 bits of SHA-1)
+	 */
+	public static String hashContent(ByteBuffer data) {
+		try {
+			final MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(data);
+			final byte[] digest = md.digest();
+			final StringBuilder sb = new StringBuilder(32);
+			for (int i=0;i<16;i++)
+				sb.append(String.format("%02x", digest[i] & 0xff));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every JRE is required to provide SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Determine the modification time of a class path resource.  For resources packaged in
+	 * a JAR this is the time of the JAR entry, not the JAR itself.
+	 * @param url Location of the resource
+	 * @return The modification time or -1 if unknown
+	 */
+	public static long lastModified(URL url) {
+		if (url == null)
+			return -1;
+		try {
+			if ("file".equals(url.getProtocol()))
+				return new File(url.toURI()).lastModified();
+
+			final URLConnection conn = url.openConnection();
+			if (conn instanceof JarURLConnection)
+				return ((JarURLConnection)conn).getJarEntry().getTime();
+			return conn.getLastModified();
+		} catch (IOException e) {
+			return -1;
+		} catch (URISyntaxException e) {
+			return -1;
+		}
+	}
+}
@@ -1,9 +1,33 @@
 package com.ilsian.tomcat;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
@@ -12,8 +36,33 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.catalina.Globals;
+
+import com.ilsian.commonweb.res.AssetBundle;
+import com.ilsian.commonweb.res.Loader;
+
 /**
  * Load/serve static resources included in the JAR/Package from one or more class paths.
+ *
+ * On first use the servlet builds an index of every servable resource found on the
+ * class paths (name, owning class, mime type, length and content hash), so requests
+ * are resolved with a single lookup.  Names that are not in the index are remembered
+ * in a bounded negative cache, so repeated requests for bogus URLs do not probe the
+ * class loaders again.
+ *
+ * Fingerprinted asset bundles (see AssetBundle) can also be served, held in memory
+ * and marked immutable, as their names change whenever their content does.
+ *
+ * Single byte ranges are supported for identity encoded responses.  Optionally, large
+ * resources are extracted to a work directory and handed to the connector to transfer
+ * with sendfile, so they are never copied through the heap.
+ *
+ * Directories may be added to overlay (patch or override) the class path resources.
+ * Small files in these directories are read into memory and larger ones are memory
+ * mapped, and a WatchService keeps their metadata and any cached copies current as files
+ * are changed, added or removed.  A mapped file must be replaced (written elsewhere and
+ * renamed over) rather than rewritten in place, since a request reading a mapping past
+ * the end of a truncated file fails.
  * @author justin
  *
  */
@@ -25,8 +74,62 @@ public class StaticResourceServlet extends HttpServlet {
 	public static final int CACHE_DEFAULT = -1;	// default, do not specify any caching options
 	public static final int CACHE_DISABLE = 0;  // disable caching for resources served
 	
+	static final int MAX_NEGATIVE_ENTRIES = 1024;	// bound on remembered missing/forbidden names
+	static final int MAX_HEAP_OVERLAY = 1024*1024;	// larger overlay files are memory mapped
+	static final long[] UNSATISFIABLE_RANGE = new long[0];	// marker for a range outside the resource
+	static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";	// for fingerprinted bundles
+	
+	// mime types for the resources we serve, anything else is forbidden
+	private static final Map<String, String> MIME_TYPES = new HashMap<String, String>();
+	static {
+		MIME_TYPES.put("js", "text/javascript");
+		MIME_TYPES.put("css", "text/css");
+		MIME_TYPES.put("gif", "image/gif");
+		MIME_TYPES.put("woff", "application/x-font-woff");
+		MIME_TYPES.put("woff2", "application/font-woff2");
+		MIME_TYPES.put("svg", "image/svg+xml");
+		MIME_TYPES.put("ttf", "application/x-font-ttf");
+		MIME_TYPES.put("ico", "image/x-icon");
+		MIME_TYPES.put("html", "text/html");
+		MIME_TYPES.put("png", "image/png");
+		MIME_TYPES.put("jpg", "image/jpeg");
+		MIME_TYPES.put("map", "application/json");		// only for .css.map, see getMimeType
+	}
+	
 	private Vector<Class<?>> _hostClasses = new Vector<Class<?>>();	// classes to search for the resource
 	private String _cacheControlHeader = null;					// generated cache control header
+	private StaticResourceCache _memoryCache = null;			// optional in-memory resource cache
+	private MetricsRegistry _metrics = MetricsRegistry.getDefault();	// request metrics, or null to not record
+	private boolean _sampleAllocation = false;					// record the bytes each request allocates
+	
+	private File _sendfileDir = null;							// optional directory of extracted resources for sendfile
+	private long _sendfileMinSize = 0;							// smallest resource to send with sendfile
+	private ConcurrentHashMap<String, File> _extracted = new ConcurrentHashMap<String, File>();	// extracted resources by name
+	
+	private Vector<Path> _overlayDirs = new Vector<Path>();		// directories searched before the class paths
+	// resources found in overlay directories, maintained by the directory watcher
+	private ConcurrentHashMap<String, FileResource> _overlay = new ConcurrentHashMap<String, FileResource>();
+	private WatchService _watcher = null;						// watches overlay directories for changes
+	
+	// fingerprinted bundles by file name, with their content ready to serve
+	private ConcurrentHashMap<String, BundleResource> _bundles = new ConcurrentHashMap<String, BundleResource>();
+	// bundles to publish to the servlet context's templates, once it is known
+	private Vector<AssetBundle> _published = new Vector<AssetBundle>();
+	
+	// immutable index of all resources on listable class paths, built on first use
+	private volatile Map<String, StaticResourceInfo> _index = null;
+	// true when every host class could be listed, so the index is authoritative
+	private volatile boolean _indexComplete = false;
+	// resources found by probing class paths that could not be listed
+	private ConcurrentHashMap<String, StaticResourceInfo> _probedInfo = new ConcurrentHashMap<String, StaticResourceInfo>();
+	// bounded cache of names resolved to an error status (not found, forbidden)
+	private Map<String, Integer> _negativeCache = Collections.synchronizedMap(new LinkedHashMap<String, Integer>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+			return size() > MAX_NEGATIVE_ENTRIES;
+		}
+	});
 	
 	/**
 	 * Constructor.  Create a static resource servlet.
@@ -59,11 +162,380 @@ public class StaticResourceServlet extends HttpServlet {
 	 */
 	public StaticResourceServlet addStaticResourceClass(Class<?> c) {
 		if (!_hostClasses.contains(c))
+		{
 			_hostClasses.add(c);
+			invalidateIndex();
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Add a directory whose files overlay (take priority over) the class path resources, to
+	 * patch or override resources without rebuilding.  Directories added first have priority.
+	 * Files are watched, so changes are served without a restart.
+	 * @param dir Directory of resources
+	 * @return this, to facilitate configuration in a single line
+	 * @throws IOException If the directory cannot be read or watched
+	 */
+	public synchronized StaticResourceServlet addStaticResourceDirectory(Path dir) throws IOException {
+		if (_overlayDirs.contains(dir))
+			return this;
+		
+		if (_watcher == null)
+		{
+			_watcher = dir.getFileSystem().newWatchService();
+			final Thread t = new Thread(new Runnable() {
+				public void run() {
+					watchOverlayDirectories();
+				}
+			}, "SRS-watcher");
+			t.setDaemon(true);
+			t.start();
+		}
+		dir.register(_watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, 
+				StandardWatchEventKinds.ENTRY_DELETE);
+		_overlayDirs.add(dir);
 		
+		final DirectoryStream<Path> files = Files.newDirectoryStream(dir);
+		try {
+			for (Path f:files)
+				refreshOverlay(f.getFileName().toString());
+		} finally {
+			files.close();
+		}
+		return this;
+	}
+	
+	/**
+	 * Enable the in-memory cache mode.  Each resolved resource is loaded once from
+	 * the class path and kept in memory (along with a precompressed gzip copy for
+	 * compressible types), and served directly from memory afterward.
+	 * @param maxBytes Maximum bytes to hold in memory, least recently used resources
+	 * are evicted beyond this limit
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public StaticResourceServlet enableMemoryCache(long maxBytes) {
+		_memoryCache = new StaticResourceCache(maxBytes);
+		return this;
+	}
+	
+	/**
+	 * Get the in-memory resource cache.
+	 * @return The cache, or null if the memory cache mode is not enabled
+	 */
+	public StaticResourceCache getMemoryCache() {
+		return _memoryCache;
+	}
+	
+	/**
+	 * Enable sendfile for large resources.  Resources at least the minimum size are extracted
+	 * from the class path into the work directory on first use, and the connector transfers
+	 * them directly from the file when it supports sendfile (the NIO connector does by default).
+	 * Resources served gzip encoded from the memory cache are not affected.
+	 * @param workDir Directory to extract resources into, for example WebServer.getWorkDirectory()
+	 * @param minSize Smallest resource, in bytes, to send with sendfile
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public StaticResourceServlet enableSendfile(File workDir, long minSize) {
+		_sendfileDir = new File(workDir, "srs");
+		_sendfileMinSize = minSize;
 		return this;
 	}
 	
+	/**
+	 * Serve a fingerprinted asset bundle, and publish its URL for templates to use.  The URL
+	 * is published to the templates of this servlet's web server (see
+	 * WebLib.getPublishedBundles) when the servlet initializes, or at once if it already has,
+	 * so the servlet should be loaded on startup (WebServer does this by default).
+	 * @param bundle The bundle to serve
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public StaticResourceServlet addAssetBundle(AssetBundle bundle) {
+		final String mtype = getMimeType(bundle.getFileName());
+		try {
+			final StaticResourceInfo info = new StaticResourceInfo(bundle.getFileName(), getClass(), mtype, 
+					bundle.getData().length, System.currentTimeMillis(), bundle.getHash());
+			_bundles.put(bundle.getFileName(), new BundleResource(info, StaticResourceCache.createEntry(bundle.getData(), mtype)));
+			_published.add(bundle);
+			if (getServletConfig() != null)
+				bundle.publish(WebLib.getPublishedBundles(getServletContext()));
+		} catch (IOException e) {
+			logger.warning(String.format("SRS:unable to add bundle %s: %s", bundle.getName(), e.getMessage()));
+		}
+		return this;
+	}
+	
+	/**
+	 * Serve the common stylesheets and scripts (those included by CommonJsCss.ftl) as
+	 * fingerprinted bundles, so templates include one stylesheet and one script.  If the
+	 * bundles cannot be created, templates continue to include the individual files.
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public StaticResourceServlet enableCommonBundles() {
+		try {
+			for (AssetBundle b:Loader.createCommonBundles())
+				addAssetBundle(b);
+		} catch (IOException e) {
+			logger.warning("SRS:unable to create common bundles: " + e.getMessage());
+		}
+		return this;
+	}
+	
+	/**
+	 * Servlet initialization, builds the resource index so requests don't pay for it and
+	 * publishes the bundles being served
+	 */
+	@Override
+	public void init() throws ServletException {
+		getIndex();
+		final Map<String, String> published = WebLib.getPublishedBundles(getServletContext());
+		for (AssetBundle b:_published)
+			b.publish(published);
+	}
+	
+	/**
+	 * Servlet destruction, stops watching overlay directories
+	 */
+	@Override
+	public synchronized void destroy() {
+		if (_watcher != null)
+		{
+			try {
+				_watcher.close();
+			} catch (IOException ignore) {
+			}
+			_watcher = null;
+		}
+	}
+	
+	/**
+	 * Watch the overlay directories, refreshing resources as their files change.  Runs
+	 * until the watch service is closed.
+	 */
+	private void watchOverlayDirectories()
+	{
+		final WatchService watcher = _watcher;
+		try {
+			while (true)
+			{
+				final WatchKey key = watcher.take();
+				for (WatchEvent<?> event:key.pollEvents())
+				{
+					// a failure only loses this event, the watcher must keep running
+					try {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+							refreshAllOverlays();
+						else
+							refreshOverlay(((Path)event.context()).getFileName().toString());
+					} catch (IOException e) {
+						logger.warning("SRS:overlay refresh failed: " + e.getMessage());
+					} catch (RuntimeException e) {
+						logger.log(Level.WARNING, "SRS:overlay refresh failed", e);
+					}
+				}
+				key.reset();
+			}
+		} catch (InterruptedException e) {
+			// done
+		} catch (ClosedWatchServiceException e) {
+			// done
+		}
+	}
+	
+	/**
+	 * Refresh every overlay resource, after watch events were lost.  Each directory is
+	 * checked even if another cannot be read.
+	 * @throws IOException If any directory could not be read
+	 */
+	private void refreshAllOverlays() throws IOException
+	{
+		for (String name:_overlay.keySet())
+			refreshOverlay(name);
+		IOException failure = null;
+		for (Path dir:_overlayDirs)
+		{
+			try {
+				final DirectoryStream<Path> files = Files.newDirectoryStream(dir);
+				try {
+					for (Path f:files)
+						refreshOverlay(f.getFileName().toString());
+				} finally {
+					files.close();
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+	
+	/**
+	 * Find a resource in the overlay directories and update its entry, discarding anything
+	 * remembered about the prior version.
+	 * @param res The name of the resource
+	 */
+	private synchronized void refreshOverlay(String res)
+	{
+		final String mtype = getMimeType(res);
+		if (mtype == null)
+			return;
+		
+		FileResource found = null;
+		for (Path dir:_overlayDirs)
+		{
+			final Path f = dir.resolve(res);
+			if (!Files.isRegularFile(f))
+				continue;
+			try {
+				if (Files.size(f) > Integer.MAX_VALUE)
+				{
+					logger.warning(String.format("SRS:overlay %s is too large to serve", f));
+					break;
+				}
+				found = new FileResource(res, f, mtype);
+			} catch (IOException e) {
+				// likely removed or still being written, the next event will retry
+				logger.fine(String.format("SRS:unable to map %s: %s", f, e.getMessage()));
+			}
+			break;
+		}
+		
+		if (found != null)
+			_overlay.put(res, found);
+		else
+			_overlay.remove(res);
+		
+		_negativeCache.remove(res);
+		_extracted.remove(res);
+		if (_memoryCache != null)
+			_memoryCache.remove(res);
+		logger.fine(String.format("SRS:overlay %s %s", res, found != null ? "updated" : "removed"));
+	}
+	
+	/**
+	 * Determine the mime type of a resource from its extension.
+	 * @param res The name of the resource
+	 * @return The mime type, or null if the resource type is not served
+	 */
+	public static String getMimeType(String res)
+	{
+		final int dot = res.lastIndexOf('.');
+		if (dot < 0)
+			return null;
+		final String ext = res.substring(dot + 1);
+		if (ext.equals("map") && !res.endsWith(".css.map"))
+			return null;
+		return MIME_TYPES.get(ext);
+	}
+	
+	/**
+	 * Get the resource index, building it if needed.
+	 * @return An immutable map of resource name to resource info
+	 */
+	protected Map<String, StaticResourceInfo> getIndex()
+	{
+		final Map<String, StaticResourceInfo> index = _index;
+		if (index != null)
+			return index;
+		
+		synchronized (this)
+		{
+			if (_index == null)
+				buildIndex();
+			return _index;
+		}
+	}
+	
+	/**
+	 * Discard the resource index and any remembered lookups, they are rebuilt on next use
+	 */
+	protected synchronized void invalidateIndex()
+	{
+		_index = null;
+		_probedInfo.clear();
+		_negativeCache.clear();
+	}
+	
+	/**
+	 * Build the index of all servable resources on all class paths, the first class
+	 * in order wins if a name appears more than once.
+	 */
+	private void buildIndex()
+	{
+		final long start = System.currentTimeMillis();
+		final Map<String, StaticResourceInfo> index = new HashMap<String, StaticResourceInfo>();
+		boolean complete = true;
+		for (Class<?> c:_hostClasses)
+		{
+			List<String> names;
+			try {
+				names = Loader.listResources(c, null);
+			} catch (IOException e) {
+				names = null;
+			}
+			if (names == null)
+			{
+				logger.warning("SRS:unable to index resources for " + c.getName());
+				complete = false;
+				continue;
+			}
+			
+			for (String res:names)
+			{
+				final String mtype = getMimeType(res);
+				if (mtype == null || index.containsKey(res))
+					continue;
+				try {
+					final URL url = c.getResource(res);
+					final byte[] data = readResource(url);
+					index.put(res, new StaticResourceInfo(res, c, mtype, data.length,
+							StaticResourceInfo.lastModified(url), StaticResourceInfo.hashContent(data)));
+				} catch (IOException e) {
+					logger.warning(String.format("SRS:unable to index %s: %s", res, e.getMessage()));
+				}
+			}
+		}
+		_indexComplete = complete;
+		_index = Collections.unmodifiableMap(index);
+		logger.fine(String.format("SRS:indexed %d resources in %dms", index.size(), System.currentTimeMillis() - start));
+	}
+	
+	/**
+	 * Resolve a resource from the index.  Only when the index is not authoritative (some
+	 * class path could not be listed) are the class paths probed, and those results are
+	 * remembered.
+	 * @param res The name of the resource
+	 * @param mtype The mime type of the resource
+	 * @return The resource info or null if it doesn't exist
+	 * @throws IOException
+	 */
+	private StaticResourceInfo resolveResource(String res, String mtype) throws IOException
+	{
+		StaticResourceInfo info = getIndex().get(res);
+		if (info != null || _indexComplete)
+			return info;
+		
+		info = _probedInfo.get(res);
+		if (info != null)
+			return info;
+		
+		for (Class<?> c:_hostClasses)
+		{
+			final URL url = c.getResource(res);
+			if (url != null)
+			{
+				final byte[] data = readResource(url);
+				info = new StaticResourceInfo(res, c, mtype, data.length,
+						StaticResourceInfo.lastModified(url), StaticResourceInfo.hashContent(data));
+				_probedInfo.put(res, info);
+				return info;
+			}
+		}
+		return null;
+	}
+	
 	/**
 	 * Determine the resource name from a URL request
 	 * @param request The HTTP request
@@ -75,18 +547,70 @@ public class StaticResourceServlet extends HttpServlet {
 		return uri.substring(uri.lastIndexOf('/')+1, uri.length());
 	}
 	
+	/**
+	 * Set where request metrics are recorded, by default the default MetricsRegistry.
+	 * Requests are recorded by the URL pattern they were mapped with, e.g. '/res/*',
+	 * rather than by resource.
+	 * @param metrics The registry, or null to not record metrics
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public StaticResourceServlet setMetrics(MetricsRegistry metrics) {
+		_metrics = metrics;
+		return this;
+	}
+	
+	/**
+	 * Set whether the bytes allocated by each request are recorded with its metrics, see
+	 * AppServlet.setAllocationSampling
+	 * @param sample True to sample allocation
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public StaticResourceServlet setAllocationSampling(boolean sample) {
+		_sampleAllocation = sample && MetricsRegistry.enableAllocationSampling();
+		return this;
+	}
+	
+	/**
+	 * Serve a request, recording its metrics by URL pattern and its flight event
+	 */
+	@Override
+	protected void service(HttpServletRequest request,
+			HttpServletResponse response) throws ServletException, IOException {
+		
+		final Object evt = FlightEvents.STATIC_RESOURCE.begin();
+		final MetricsRegistry metrics = _metrics;
+		if (metrics == null && evt == null)
+		{
+			super.service(request, response);
+			return;
+		}
+		
+		final MeteredResponse metered = new MeteredResponse(response, metrics != null && _sampleAllocation);
+		boolean ok = false;
+		try {
+			super.service(request, metered);
+			ok = true;
+		} finally {
+			final String route = request.getHttpServletMapping().getPattern();
+			if (metrics != null)
+				metrics.complete(getServletName(), route, request, metered, ok);
+			if (evt != null)
+				FlightEvents.STATIC_RESOURCE.commit(evt, route, resourceFromRequest(request), response.getStatus(), metered.getBytesWritten());
+		}
+	}
+	
 	/**
 	 * Handle HTTP Get requests for static resources
 	 * @param request - The HTTP request
 	 * @param response - The HTTP response
 	 */
 	@Override
-	protected void doGet(HttpServletRequest request, 
+	protected void doGet(HttpServletRequest request,
 			HttpServletResponse response) throws ServletException, IOException {
 
 		final String resource = resourceFromRequest(request);
 		logger.finest(String.format("SRS:goGet[%s]=%s",request.getRequestURI(), resource));
-		getClassResource(resource, response);
+		getClassResource(resource, request, response);
 	}
 	
 	/**
@@ -97,96 +621,540 @@ public class StaticResourceServlet extends HttpServlet {
 	 * @throws IOException
 	 */
 	protected void getClassResource(String res, HttpServletResponse response) throws ServletException, IOException
+	{
+		getClassResource(res, null, response);
+	}
+	
+	/**
+	 * Serve a static resource by its name
+	 * @param res The name of the resource
+	 * @param request The HTTP request, used to negotiate content encoding (may be null)
+	 * @param response The HTTP response to write data
+	 * @throws ServletException
+	 * @throws IOException
+	 */
+	protected void getClassResource(String res, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
 	{
 		// no classes, no data
-		if (_hostClasses.isEmpty())
+		if (_hostClasses.isEmpty() && _overlayDirs.isEmpty())
 		{
 			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
 			return;
 		}
 		
-		// determine the content type from extension
-		if (res.endsWith("js"))
+		final BundleResource bundle = _bundles.get(res);
+		if (bundle != null)
 		{
-			response.setContentType("text/javascript");
+			getBundleResource(bundle, request, response);
+			return;
 		}
-		else if (res.endsWith("css"))
+		
+		// names that failed before fail the same way, without further lookups
+		final Integer failed = _negativeCache.get(res);
+		if (failed != null)
 		{
-			response.setContentType("text/css");
+			response.setStatus(failed);
+			return;
 		}
-		else if (res.endsWith("gif"))
+		
+		// for security reasons, don't let static resources get pulled for things we aren't assigning
+		// mime-types to, such as .java or .class files
+		final String mtype = getMimeType(res);
+		if (mtype == null)
 		{
-			response.setContentType("image/gif");
+			_negativeCache.put(res, HttpServletResponse.SC_FORBIDDEN);
+			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+			return;
 		}
-		else if (res.endsWith("woff"))
+		
+		// files in overlay directories take priority over the class paths
+		final FileResource file = _overlay.get(res);
+		final StaticResourceInfo info = file != null ? file.mInfo : resolveResource(res, mtype);
+		if (info == null)
 		{
-			response.setContentType("application/x-font-woff");
+			_negativeCache.put(res, HttpServletResponse.SC_NOT_FOUND);
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			return;
 		}
-		else if (res.endsWith("woff2"))
+		
+		response.setContentType(info.mContentType);
+		if (_cacheControlHeader != null)
+			response.addHeader("cache-control", _cacheControlHeader);
+		if (info.mLastModified > 0)
+			response.setDateHeader("Last-Modified", info.mLastModified);
+		if (_memoryCache != null && StaticResourceCache.isCompressible(info.mContentType))
 		{
-			response.setContentType("application/font-woff2");
+			// caches must keep the encodings apart when there is a choice
+			response.setHeader("Vary", "Accept-Encoding");
 		}
-		else if (res.endsWith("svg"))
+		
+		// answer revalidation with the validator of the representation a 200 would send,
+		// touching the resource only to learn whether it compresses
+		if (isNotModified(info, request))
 		{
-			response.setContentType("image/svg+xml");
+			String etag = info.mETag;
+			if (_memoryCache != null && StaticResourceCache.isCompressible(info.mContentType))
+			{
+				final StaticResourceCache.Entry entry = getCacheEntry(info, file);
+				if (entry != null && sendsGzip(entry, null, request))
+					etag = info.mGzipETag;
+			}
+			response.setHeader("ETag", etag);
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
 		}
-		else if (res.endsWith("ttf"))
+		
+		response.setHeader("Accept-Ranges", "bytes");
+		final long[] range = getRequestRange(info, request);
+		if (range == UNSATISFIABLE_RANGE)
 		{
-			response.setContentType("application/x-font-ttf");
+			response.setHeader("Content-Range", "bytes */" + info.mLength);
+			response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return;
 		}
-		else if (res.endsWith("ico"))
+		
+		// large identity responses go out with sendfile when the connector allows it
+		final boolean gzipPreferred = _memoryCache != null && StaticResourceCache.isCompressible(info.mContentType)
+				&& range == null && WebLib.acceptsEncoding(request, "gzip");
+		if (_sendfileDir != null && !gzipPreferred && info.mLength >= _sendfileMinSize && request != null
+				&& Boolean.TRUE.equals(request.getAttribute(Globals.SENDFILE_SUPPORTED_ATTR)))
 		{
-			response.setContentType("image/x-icon");
+			final File f = file != null ? file.mPath.toFile() : getExtractedResource(info);
+			if (f != null)
+			{
+				response.setHeader("ETag", info.mETag);
+				final long start = range != null ? range[0] : 0;
+				final long end = range != null ? range[1] + 1 : info.mLength;
+				setRangeHeaders(info, range, response);
+				response.setContentLengthLong(end - start);
+				request.setAttribute(Globals.SENDFILE_FILENAME_ATTR, f.getAbsolutePath());
+				request.setAttribute(Globals.SENDFILE_FILE_START_ATTR, Long.valueOf(start));
+				request.setAttribute(Globals.SENDFILE_FILE_END_ATTR, Long.valueOf(end));
+				return;
+			}
 		}
-		else if (res.endsWith("html"))
+		
+		if (_memoryCache != null)
 		{
-			response.setContentType("text/html");
+			getCachedResource(info, file, request, response);
+			return;
 		}
-		else if (res.endsWith("png"))
+		
+		if (file != null)
 		{
-			response.setContentType("image/png");
+			getFileResource(file, range, response);
+			return;
 		}
-		else if (res.endsWith("jpg"))
+		
+		final InputStream is = info.mOwner.getResourceAsStream(res);
+		if (is == null)
 		{
-			response.setContentType("image/jpeg");
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			return;
 		}
-		else if (res.endsWith(".css.map"))
-		{
-			response.setContentType("application/json");
+		
+		response.setHeader("ETag", info.mETag);
+		setRangeHeaders(info, range, response);
+		ServletOutputStream sos = response.getOutputStream();
+		try {
+			if (range == null)
+			{
+				response.setContentLength((int)info.mLength);
+				copyStream(is, sos);
+			}
+			else
+			{
+				response.setContentLengthLong(range[1] - range[0] + 1);
+				skipFully(is, range[0]);
+				copyStream(is, sos, range[1] - range[0] + 1);
+			}
+		} finally {
+			is.close();
 		}
-		else
+		sos.flush();
+		sos.close();
+	}
+	
+	/**
+	 * Determine the byte range requested.  Only a single range is supported, requests for
+	 * multiple ranges (or with an If-Range condition that fails) get the entire resource.
+	 * @param info Resource metadata
+	 * @param request The HTTP request (may be null)
+	 * @return The first and last byte positions (inclusive), null for the entire resource, or
+	 * UNSATISFIABLE_RANGE if the range lies outside the resource
+	 */
+	protected static long[] getRequestRange(StaticResourceInfo info, HttpServletRequest request)
+	{
+		if (request == null)
+			return null;
+		final String rangeHeader = request.getHeader("Range");
+		if (rangeHeader == null || !rangeHeader.startsWith("bytes=") || rangeHeader.indexOf(',') >= 0)
+			return null;
+		
+		// a range is only valid against the representation the client already has part of
+		final String ifRange = request.getHeader("If-Range");
+		if (ifRange != null)
 		{
-			// for security reasons, don't let static resources get pulled for things we aren't assigning
-			// mime-types to, such as .java or .class files
-			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+			if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+			{
+				if (!ifRange.equals(info.mETag))
+					return null;
+			}
+			else
+			{
+				try {
+					if (info.mLastModified <= 0 || request.getDateHeader("If-Range") != info.mLastModified)
+						return null;
+				} catch (IllegalArgumentException iae) {
+					return null;
+				}
+			}
+		}
+		
+		final String spec = rangeHeader.substring(6).trim();
+		final int dash = spec.indexOf('-');
+		if (dash < 0)
+			return null;
+		try {
+			long start, end;
+			if (dash == 0)
+			{
+				// suffix range, the last N bytes
+				final long count = Long.parseLong(spec.substring(1).trim());
+				if (count <= 0)
+					return UNSATISFIABLE_RANGE;
+				start = Math.max(0, info.mLength - count);
+				end = info.mLength - 1;
+			}
+			else
+			{
+				start = Long.parseLong(spec.substring(0, dash).trim());
+				final String last = spec.substring(dash + 1).trim();
+				end = last.isEmpty() ? info.mLength - 1 : Math.min(Long.parseLong(last), info.mLength - 1);
+				if (end < start)
+					return last.isEmpty() || Long.parseLong(last) >= start ? UNSATISFIABLE_RANGE : null;
+			}
+			if (start >= info.mLength)
+				return UNSATISFIABLE_RANGE;
+			return new long[] { start, end };
+		} catch (NumberFormatException nfe) {
+			// malformed ranges are ignored
+			return null;
+		}
+	}
+	
+	/**
+	 * Set the status and Content-Range header for a partial response
+	 * @param info Resource metadata
+	 * @param range Range being served, or null for the entire resource
+	 * @param response The HTTP response
+	 */
+	private static void setRangeHeaders(StaticResourceInfo info, long[] range, HttpServletResponse response)
+	{
+		if (range == null)
 			return;
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		response.setHeader("Content-Range", String.format("bytes %d-%d/%d", range[0], range[1], info.mLength));
+	}
+	
+	/**
+	 * Get the extracted copy of a resource for sendfile, extracting it if needed. Files are
+	 * named by content hash, so a changed resource never reuses a stale copy.
+	 * @param info Resource metadata
+	 * @return The extracted file, or null if it could not be extracted
+	 */
+	private File getExtractedResource(StaticResourceInfo info)
+	{
+		final File existing = _extracted.get(info.mName);
+		if (existing != null)
+			return existing;
+		
+		final String hash = info.mETag.substring(1, info.mETag.length() - 1);
+		final File f = new File(_sendfileDir, hash + "-" + info.mName);
+		try {
+			if (!f.isFile() || f.length() != info.mLength)
+			{
+				_sendfileDir.mkdirs();
+				final InputStream is = info.mOwner.getResourceAsStream(info.mName);
+				if (is == null)
+					return null;
+				// write aside and rename, so a concurrent request never sends a partial file
+				final File tmp = File.createTempFile(hash, ".tmp", _sendfileDir);
+				final FileOutputStream fos = new FileOutputStream(tmp);
+				try {
+					copyStream(is, fos);
+				} finally {
+					is.close();
+					fos.close();
+				}
+				if (!tmp.renameTo(f) && !(f.isFile() && f.length() == info.mLength))
+				{
+					tmp.delete();
+					return null;
+				}
+			}
+		} catch (IOException e) {
+			logger.warning(String.format("SRS:unable to extract %s: %s", info.mName, e.getMessage()));
+			return null;
 		}
+		_extracted.put(info.mName, f);
+		return f;
+	}
+	
+	/**
+	 * Evaluate the conditional request headers against a resource.  If-None-Match takes
+	 * precedence, If-Modified-Since is only considered when no entity tags are given.
+	 * @param info Resource metadata
+	 * @param request The HTTP request (may be null)
+	 * @return true if the client copy is current and a 304 should be sent
+	 */
+	protected static boolean isNotModified(StaticResourceInfo info, HttpServletRequest request)
+	{
+		if (request == null)
+			return false;
+		
+		final String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null)
+			return info.matchesETag(ifNoneMatch);
 		
+		if (info.mLastModified > 0)
+		{
+			try {
+				final long since = request.getDateHeader("If-Modified-Since");
+				return since >= 0 && info.mLastModified <= since;
+			} catch (IllegalArgumentException iae) {
+				// unparsable date, ignore the condition
+			}
+		}
+		return false;
+	}
 	
-		// search all class paths for this resource, in order, until located
-		InputStream is = null;
-		for (Class<?> c:_hostClasses)
+	/**
+	 * Serve an overlay file from memory or its memory mapping
+	 * @param file The file resource
+	 * @param range Range being served, or null for the entire resource
+	 * @param response The HTTP response, with content type already assigned
+	 * @throws IOException
+	 */
+	private static void getFileResource(FileResource file, long[] range, HttpServletResponse response) throws IOException
+	{
+		final ByteBuffer buf = file.mData.duplicate();
+		if (range != null)
 		{
-			is = c.getResourceAsStream(res);
-			if (is != null)
-				break;
+			buf.position((int)range[0]);
+			buf.limit((int)range[1] + 1);
 		}
 		
-		if (is == null)
+		response.setHeader("ETag", file.mInfo.mETag);
+		setRangeHeaders(file.mInfo, range, response);
+		response.setContentLength(buf.remaining());
+		ServletOutputStream sos = response.getOutputStream();
+		final WritableByteChannel ch = Channels.newChannel(sos);
+		while (buf.hasRemaining())
+			ch.write(buf);
+		sos.flush();
+		sos.close();
+	}
+	
+	/**
+	 * Serve a static resource from the memory cache, loading it if it is not present.
+	 * @param info Resource metadata
+	 * @param file The overlay file for the resource, or null if it is from a class path
+	 * @param request The HTTP request (may be null)
+	 * @param response The HTTP response, with content type already assigned
+	 * @throws IOException
+	 */
+	private void getCachedResource(StaticResourceInfo info, FileResource file, HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		final StaticResourceCache.Entry entry = getCacheEntry(info, file);
+		if (entry == null)
 		{
 			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
 			return;
 		}
+		writeEntry(info, entry, request, response);
+	}
+	
+	/**
+	 * Get a resource from the memory cache, loading it if needed
+	 * @param info Resource metadata
+	 * @param file The overlay file of the resource, or null to read it from its class path
+	 * @return The cache entry, or null if the resource can't be found
+	 * @throws IOException
+	 */
+	private StaticResourceCache.Entry getCacheEntry(StaticResourceInfo info, FileResource file) throws IOException
+	{
+		StaticResourceCache.Entry entry = _memoryCache.get(info.mName);
+		if (entry == null)
+		{
+			byte[] data;
+			if (file != null)
+			{
+				data = new byte[file.mData.remaining()];
+				file.mData.duplicate().get(data);
+			}
+			else
+			{
+				final URL url = info.mOwner.getResource(info.mName);
+				if (url == null)
+					return null;
+				data = readResource(url);
+			}
+			entry = StaticResourceCache.createEntry(data, info.mContentType);
+			// a concurrent change to the overlay file could leave an old copy, so only store it if current
+			if (file == null || _overlay.get(info.mName) == file)
+				_memoryCache.put(info.mName, entry);
+		}
+		return entry;
+	}
+	
+	/**
+	 * Serve a fingerprinted bundle.  As the name changes with the content, the response
+	 * never needs revalidation.
+	 * @param bundle The bundle to serve
+	 * @param request The HTTP request (may be null)
+	 * @param response The HTTP response
+	 * @throws IOException
+	 */
+	private void getBundleResource(BundleResource bundle, HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		final StaticResourceInfo info = bundle.mInfo;
+		response.setContentType(info.mContentType);
+		response.setHeader("cache-control", IMMUTABLE_CACHE_CONTROL);
+		if (bundle.mEntry.mGzipData != null)
+			response.setHeader("Vary", "Accept-Encoding");
 		
-		if (_cacheControlHeader != null)
-			response.addHeader("cache-control", _cacheControlHeader);
+		if (isNotModified(info, request))
+		{
+			response.setHeader("ETag", sendsGzip(bundle.mEntry, null, request) ? info.mGzipETag : info.mETag);
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		writeEntry(info, bundle.mEntry, request, response);
+	}
+	
+	/**
+	 * Determine if an in-memory resource is sent gzip encoded
+	 * @param entry Resource content
+	 * @param range Range being served, or null for the entire resource
+	 * @param request The HTTP request (may be null)
+	 * @return true if the gzip representation is selected
+	 */
+	private static boolean sendsGzip(StaticResourceCache.Entry entry, long[] range, HttpServletRequest request)
+	{
+		return range == null && entry.mGzipData != null && WebLib.acceptsEncoding(request, "gzip");
+	}
+	
+	/**
+	 * Write an in-memory resource using the best encoding the client accepts.
+	 * @param info Resource metadata
+	 * @param entry Resource content
+	 * @param request The HTTP request (may be null)
+	 * @param response The HTTP response, with content type already assigned
+	 * @throws IOException
+	 */
+	private static void writeEntry(StaticResourceInfo info, StaticResourceCache.Entry entry, HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		final long[] range = getRequestRange(info, request);
+		if (range == UNSATISFIABLE_RANGE)
+		{
+			response.setHeader("Content-Range", "bytes */" + info.mLength);
+			response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return;
+		}
 		
+		byte[] body = entry.mData;
+		String etag = info.mETag;
+		if (sendsGzip(entry, range, request))
+		{
+			response.setHeader("Content-Encoding", "gzip");
+			body = entry.mGzipData;
+			etag = info.mGzipETag;
+		}
+		
+		response.setHeader("ETag", etag);
+		response.setHeader("Accept-Ranges", "bytes");
 		ServletOutputStream sos = response.getOutputStream();
-		copyStream(is, sos);
+		if (range == null)
+		{
+			response.setContentLength(body.length);
+			sos.write(body);
+		}
+		else
+		{
+			setRangeHeaders(info, range, response);
+			response.setContentLength((int)(range[1] - range[0] + 1));
+			sos.write(body, (int)range[0], (int)(range[1] - range[0] + 1));
+		}
 		sos.flush();
 		sos.close();
 	}
 	
+	/**
+	 * A file in an overlay directory, copied to the heap when small and memory mapped
+	 * otherwise.  Files must be smaller than 2GB.
+	 */
+	static class FileResource {
+		final StaticResourceInfo mInfo;
+		final Path mPath;
+		final ByteBuffer mData;
+		
+		FileResource(String name, Path path, String contentType) throws IOException {
+			final FileChannel fc = FileChannel.open(path, StandardOpenOption.READ);
+			try {
+				final long size = fc.size();
+				if (size > MAX_HEAP_OVERLAY)
+					mData = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				else
+				{
+					// a copy can't be truncated under a request, as a mapping can
+					final ByteBuffer buf = ByteBuffer.allocate((int)size);
+					while (buf.hasRemaining() && fc.read(buf) >= 0)
+						;
+					buf.flip();
+					mData = buf;
+				}
+			} finally {
+				// the mapping remains valid after the channel is closed
+				fc.close();
+			}
+			mPath = path;
+			mInfo = new StaticResourceInfo(name, null, contentType, mData.remaining(), 
+					Files.getLastModifiedTime(path).toMillis(), StaticResourceInfo.hashContent(mData.duplicate()));
+		}
+	}
+	
+	/**
+	 * A bundle ready to be served
+	 */
+	static class BundleResource {
+		final StaticResourceInfo mInfo;
+		final StaticResourceCache.Entry mEntry;
+		
+		BundleResource(StaticResourceInfo info, StaticResourceCache.Entry entry) {
+			mInfo = info;
+			mEntry = entry;
+		}
+	}
+	
+	/**
+	 * Read the entire content of a resource.
+	 * @param url Location of the resource
+	 * @return The resource content
+	 * @throws IOException
+	 */
+	static byte[] readResource(URL url) throws IOException
+	{
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		final InputStream is = url.openStream();
+		try {
+			copyStream(is, bos);
+		} finally {
+			is.close();
+		}
+		return bos.toByteArray();
+	}
+	
 	/**
 	 * Copy data between in and out streams.
 	 * @param in Stream to copy from
@@ -201,4 +1169,44 @@ public class StaticResourceServlet extends HttpServlet {
 	        out.write( buf, 0, len );
     }
 	
-}
\ No newline at end of file
+	/**
+	 * Copy a limited number of bytes between in and out streams.
+	 * @param in Stream to copy from
+	 * @param out Stream to copy to
+	 * @param count Number of bytes to copy
+	 * @throws IOException
+	 */
+	static void copyStream( InputStream in, OutputStream out, long count ) throws IOException
+	{
+		byte[] buf = new byte[8*1024];
+		int len;
+		while ( count > 0 && ( len = in.read( buf, 0, (int)Math.min(buf.length, count) ) ) != -1 )
+		{
+			out.write( buf, 0, len );
+			count -= len;
+		}
+	}
+	
+	/**
+	 * Skip an exact number of bytes of an input stream.
+	 * @param in Stream to skip
+	 * @param count Number of bytes to skip
+	 * @throws IOException If the stream ends first
+	 */
+	static void skipFully( InputStream in, long count ) throws IOException
+	{
+		while (count > 0)
+		{
+			long skipped = in.skip(count);
+			if (skipped <= 0)
+			{
+				// skip may legally do nothing, so fall back on reading
+				if (in.read() < 0)
+					throw new IOException("Unexpected end of stream");
+				skipped = 1;
+			}
+			count -= skipped;
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+package com.ilsian.tomcat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * StreamingTemplateWriter - A writer for rendering templates to a response.  Output is
+ * encoded as UTF-8 into a fixed size buffer, which is reused by the thread for later
+ * requests.  Pages that fit the buffer are sent in one piece with a Content-Length;
+ * larger pages are sent chunked as the buffer fills.  Optionally, the buffer is also sent
+ * as soon as '</head>' is written, so browsers start fetching stylesheets and scripts
+ * while the body is still rendering.
+ * 
+ * Flushing does nothing, as Freemarker always flushes at the end of a template; output
+ * is sent when the buffer fills, after the head, or on close.  Nothing is sent if the
+ * writer is released without being closed, e.g. after a template error, so the response
+ * can still report the error.
+ * 
+ * @author justin
+ *
+ */
+public class StreamingTemplateWriter extends Writer {
+
+	public static final int DEFAULT_BUFFER_SIZE = 32*1024;	// bytes buffered before sending
+	public static final String CHARSET = "UTF-8";
+	
+	private static final Charset UTF8 = Charset.forName(CHARSET);
+	private static final char [] HEAD_END = "</head>".toCharArray();
+	
+	// each thread keeps its buffer for reuse, taking it out while in use so nested renders get their own
+	private static final ThreadLocal<ByteBuffer> sBuffers = new ThreadLocal<ByteBuffer>();
+	
+	private final HttpServletResponse _response;
+	private final CharsetEncoder _encoder;
+	private ByteBuffer _bytes;				// encoded output not yet sent, null once released
+	private OutputStream _out = null;		// response stream, once anything is sent
+	private long _sent = 0;					// bytes sent to the response stream
+	private boolean _flushHead;				// send the buffer after </head>
+	private int _headMatch = 0;				// characters of </head> matched so far
+	private char _carry = 0;				// high surrogate waiting for its pair
+	private char [] _scratch = new char[1024];	// reused for writing strings
+	private final RequestTrace _trace = RequestTrace.current();	// socket writes are traced as write time
+	
+	/**
+	 * Constructor.  Create a writer for a response, whose content type should already be set.
+	 * @param response The response to render to
+	 * @param bufferSize Size of the encoding buffer in bytes
+	 * @param flushHead True to send the buffer once '</head>' is written
+	 */
+	public StreamingTemplateWriter(HttpServletResponse response, int bufferSize, boolean flushHead) {
+		_response = response;
+		_flushHead = flushHead;
+		_encoder = UTF8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		
+		ByteBuffer b = sBuffers.get();
+		if (b == null || b.capacity() != bufferSize)
+			b = ByteBuffer.allocate(bufferSize);
+		else
+			sBuffers.set(null);
+		b.clear();
+		_bytes = b;
+		_response.setCharacterEncoding(CHARSET);
+	}
+	
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		if (_bytes == null)
+			throw new IOException("Writer closed");
+		if (len <= 0)
+			return;
+		
+		if (_carry != 0)
+		{
+			// complete the surrogate pair split across writes
+			encode(CharBuffer.wrap(new char[] { _carry, cbuf[off] }));
+			_carry = 0;
+			off++;
+			len--;
+		}
+		
+		if (_flushHead)
+		{
+			for (int i=0;i<len;i++)
+			{
+				final char ch = Character.toLowerCase(cbuf[off + i]);
+				_headMatch = ch == HEAD_END[_headMatch] ? _headMatch + 1 : (ch == HEAD_END[0] ? 1 : 0);
+				if (_headMatch == HEAD_END.length)
+				{
+					// send everything through the end of the head now
+					encode(CharBuffer.wrap(cbuf, off, i + 1));
+					send();
+					final long start = System.nanoTime();
+					_out.flush();
+					_trace.mark(RequestTrace.Phase.WRITE, start);
+					_flushHead = false;
+					off += i + 1;
+					len -= i + 1;
+					break;
+				}
+			}
+		}
+		
+		final CharBuffer in = CharBuffer.wrap(cbuf, off, len);
+		encode(in);
+		if (in.hasRemaining())
+			_carry = in.get();
+	}
+	
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		if (_scratch.length < len)
+			_scratch = new char[Math.max(len, _scratch.length * 2)];
+		str.getChars(off, off + len, _scratch, 0);
+		write(_scratch, 0, len);
+	}
+	
+	/**
+	 * Does nothing, output is sent when the buffer fills or on close.
+	 */
+	@Override
+	public void flush() throws IOException {
+	}
+	
+	/**
+	 * Send the remaining output, with a Content-Length if nothing was sent before, and
+	 * close the response stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (_bytes == null)
+			return;
+		try {
+			final CharBuffer in = _carry != 0 ? CharBuffer.wrap(new char[] { _carry }) : CharBuffer.allocate(0);
+			_carry = 0;
+			while (_encoder.encode(in, _bytes, true).isOverflow())
+				send();
+			while (_encoder.flush(_bytes).isOverflow())
+				send();
+			
+			if (_out == null)
+				_response.setContentLength(_bytes.position());
+			send();
+			final long start = System.nanoTime();
+			_out.close();
+			_trace.mark(RequestTrace.Phase.WRITE, start);
+		} finally {
+			release();
+		}
+	}
+	
+	/**
+	 * Return the buffer for reuse by this thread.  Output not yet sent is discarded.
+	 * Safe to call after close.
+	 */
+	public void release() {
+		if (_bytes != null)
+		{
+			sBuffers.set(_bytes);
+			_bytes = null;
+		}
+	}
+	
+	/**
+	 * @return Bytes sent to the response so far
+	 */
+	public long getBytesWritten() {
+		return _sent;
+	}
+	
+	/**
+	 * @return True once any output was sent, after which the response is committed
+	 */
+	public boolean isStreaming() {
+		return _out != null;
+	}
+	
+	// encode characters, sending the buffer whenever it fills; a trailing high surrogate is left in the input
+	private void encode(CharBuffer in) throws IOException {
+		while (_encoder.encode(in, _bytes, false).isOverflow())
+			send();
+	}
+	
+	// send the buffered bytes to the response
+	private void send() throws IOException {
+		final long start = System.nanoTime();
+		if (_out == null)
+			_out = _response.getOutputStream();
+		_out.write(_bytes.array(), 0, _bytes.position());
+		_sent += _bytes.position();
+		_bytes.clear();
+		_trace.mark(RequestTrace.Phase.WRITE, start);
+	}
+}
@@ -0,0 +1,119 @@
+package com.ilsian.tomcat;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * VirtualThreadExecutor - A connector executor which runs each request on its own virtual
+ * thread (Java 21 and later), so requests blocked on LDAP binds or back end calls don't tie
+ * up a small pool of platform threads.  Concurrency can still be bounded: a request beyond
+ * the limit waits for a permit on its own virtual thread, never on the connector's poller.
+ * 
+ * Virtual threads are created through reflection so this compiles for Java 8; use create()
+ * and fall back to the connector's own pool when it returns null.
+ * 
+ * Notes: Thread locals, like the StreamingTemplateWriter buffers, are per request rather
+ * than reused.  Blocking inside synchronized code pins the carrier thread, so handlers
+ * should prefer java.util.concurrent locks around blocking calls.
+ * 
+ * @author justin
+ *
+ */
+public class VirtualThreadExecutor implements Executor {
+
+	static Logger logger = java.util.logging.Logger.getLogger(VirtualThreadExecutor.class.getCanonicalName());
+	
+	private final ThreadFactory _factory;	// virtual thread factory
+	private final Semaphore _permits;		// concurrency limit, or null if unbounded
+	private final int _maxConcurrent;
+	
+	private VirtualThreadExecutor(ThreadFactory factory, int maxConcurrent) {
+		_factory = factory;
+		_maxConcurrent = maxConcurrent;
+		_permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+	}
+	
+	/**
+	 * Create an executor, if this JVM supports virtual threads
+	 * @param maxConcurrent Maximum number of requests run at once, or 0 for no limit
+	 * @return The executor, or null if virtual threads are not available
+	 */
+	public static VirtualThreadExecutor create(int maxConcurrent) {
+		final ThreadFactory factory = createVirtualThreadFactory("http-vt-");
+		if (factory == null)
+		{
+			logger.info("Virtual threads are not available on Java " + System.getProperty("java.version"));
+			return null;
+		}
+		return new VirtualThreadExecutor(factory, maxConcurrent);
+	}
+	
+	/**
+	 * @return True if this JVM supports virtual threads
+	 */
+	public static boolean isSupported() {
+		return createVirtualThreadFactory("probe-") != null;
+	}
+	
+	// equivalent to Thread.ofVirtual().name(prefix, 0).factory(), or null if unsupported
+	private static ThreadFactory createVirtualThreadFactory(String prefix) {
+		try {
+			final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			Object b = ofVirtual.invoke(null);
+			b = builder.getMethod("name", String.class, long.class).invoke(b, prefix, 0L);
+			return (ThreadFactory)builder.getMethod("factory").invoke(b);
+		} catch (ReflectiveOperationException e) {
+			// before Java 21, or a preview release with previews disabled
+			return null;
+		} catch (UnsupportedOperationException e) {
+			return null;
+		}
+	}
+	
+	@Override
+	public void execute(final Runnable command) {
+		if (_permits == null)
+		{
+			_factory.newThread(command).start();
+			return;
+		}
+		
+		_factory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				// waiting here parks only this virtual thread
+				_permits.acquireUninterruptibly();
+				try {
+					command.run();
+				} finally {
+					_permits.release();
+				}
+			}
+		}).start();
+	}
+	
+	/**
+	 * @return Maximum number of requests run at once, or 0 if unbounded
+	 */
+	public int getMaxConcurrent() {
+		return _maxConcurrent;
+	}
+	
+	/**
+	 * @return Number of requests currently running, or -1 if unbounded
+	 */
+	public int getActiveCount() {
+		return _permits != null ? _maxConcurrent - _permits.availablePermits() : -1;
+	}
+	
+	/**
+	 * @return Number of requests waiting for a permit, or 0 if unbounded
+	 */
+	public int getQueueLength() {
+		return _permits != null ? _permits.getQueueLength() : 0;
+	}
+}
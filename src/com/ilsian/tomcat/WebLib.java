@@ -1,7 +1,13 @@
 package com.ilsian.tomcat;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
 
+import javax.servlet.ServletContext;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -19,6 +25,84 @@ import org.json.JSONObject;
  */
 public class WebLib {
 
+	// request attribute holding the path variables of a matched path template
+	public static final String PATH_VARIABLES_ATTR = "com.ilsian.tomcat.pathVariables";
+	
+	// request attribute holding the route a request was dispatched to, for metrics
+	public static final String ROUTE_ATTR = "com.ilsian.tomcat.route";
+	
+	// servlet context attribute holding the asset bundle URLs published by logical name
+	public static final String PUBLISHED_BUNDLES_ATTR = "com.ilsian.tomcat.publishedBundles";
+	
+	/**
+	 * Get the asset bundles published in a servlet context, which the servlets of one web
+	 * server share: the StaticResourceServlet publishes into them and template servlets
+	 * bind their configurations to them (Loader.setPublishedBundles).
+	 * @param context The servlet context
+	 * @return Live, thread safe map of bundle URLs by logical name, created on first use
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, String> getPublishedBundles(ServletContext context)
+	{
+		synchronized (context) {
+			Map<String, String> published = (Map<String, String>)context.getAttribute(PUBLISHED_BUNDLES_ATTR);
+			if (published == null)
+			{
+				published = new ConcurrentHashMap<String, String>();
+				context.setAttribute(PUBLISHED_BUNDLES_ATTR, published);
+			}
+			return published;
+		}
+	}
+	
+	/**
+	 * Get the value of a path variable, for requests routed by a path template such as
+	 * '/gui/orders/{id}'.
+	 * @param request The HTTP request
+	 * @param name Variable name, e.g. 'id'
+	 * @return The value, or null if the request has no such variable
+	 */
+	public static String getPathVariable(HttpServletRequest request, String name)
+	{
+		return getPathVariables(request).get(name);
+	}
+	
+	/**
+	 * Get all path variables of a request routed by a path template.
+	 * @param request The HTTP request
+	 * @return Variable values by name, empty if the request was not routed by path
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, String> getPathVariables(HttpServletRequest request)
+	{
+		final Object vars = request.getAttribute(PATH_VARIABLES_ATTR);
+		return vars != null ? (Map<String, String>)vars : Collections.<String, String>emptyMap();
+	}
+	
+	/**
+	 * Build a key identifying requests whose responses are alike: same name (action or
+	 * template), same user security level and same values of the chosen params.
+	 * @param name Action or template name
+	 * @param user The requesting user, or null
+	 * @param request The HTTP request
+	 * @param params Names of the params that select response content
+	 * @return The key
+	 */
+	public static String buildRequestKey(String name, UserInfo user, HttpServletRequest request, String [] params)
+	{
+		final StringBuilder sb = new StringBuilder(name != null ? name : "");
+		sb.append('\0').append(user != null ? user.mLevel : -1);
+		for (String p:params)
+		{
+			final String [] values = request.getParameterValues(p);
+			sb.append('\0');
+			if (values != null)
+				for (String v:values)
+					sb.append(v).append('\1');
+		}
+		return sb.toString();
+	}
+
 	/**
 	 * Extract a String param from an HTTP request, returning a default
 	 * value if it does not exist.
@@ -74,6 +158,86 @@ public class WebLib {
 			return actual;
 	}
 	
+	/**
+	 * Determine if the client will accept a given content coding (e.g. 'gzip') by
+	 * checking the Accept-Encoding header.  Codings listed with a zero quality
+	 * value are treated as refused.  An explicit listing of the coding takes
+	 * precedence over '*', wherever each appears in the header.
+	 */
+	public static boolean acceptsEncoding(HttpServletRequest request, String coding)
+	{
+		if (request == null)
+			return false;
+		final String accept = request.getHeader("Accept-Encoding");
+		if (accept == null)
+			return false;
+		
+		Boolean wildcard = null;
+		for (String part:accept.split(","))
+		{
+			final int semi = part.indexOf(';');
+			final String name = (semi < 0 ? part : part.substring(0, semi)).trim();
+			if (name.equalsIgnoreCase(coding))
+				return isAcceptable(part, semi);
+			if (name.equals("*") && wildcard == null)
+				wildcard = isAcceptable(part, semi);
+		}
+		return wildcard != null && wildcard;
+	}
+	
+	// check one Accept-Encoding entry for an explicit q=0 (or 0.0, 0.00...) refusal
+	private static boolean isAcceptable(String part, int semi)
+	{
+		if (semi < 0)
+			return true;
+		final String params = part.substring(semi+1).trim();
+		if (params.startsWith("q="))
+		{
+			try {
+				return Double.parseDouble(params.substring(2).trim()) > 0;
+			} catch (NumberFormatException nfe) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Build the value of a Link header asking the browser to preload assets, for example
+	 * '</res/common.css>; rel=preload; as=style'. The type of each asset is determined by
+	 * its extension.  Build once and reuse, as the value doesn't change.
+	 * @param urls Asset URLs
+	 * @return The header value, or null if there are no assets
+	 */
+	public static String buildPreloadLinkHeader(String... urls)
+	{
+		if (urls == null || urls.length == 0)
+			return null;
+		
+		final StringBuilder sb = new StringBuilder();
+		for (String url:urls)
+		{
+			final String path = url.indexOf('?') >= 0 ? url.substring(0, url.indexOf('?')) : url;
+			final String ext = path.substring(path.lastIndexOf('.') + 1).toLowerCase();
+			String as;
+			if (ext.equals("css"))
+				as = "style";
+			else if (ext.equals("js"))
+				as = "script";
+			else if (ext.equals("woff") || ext.equals("woff2") || ext.equals("ttf") || ext.equals("eot"))
+				as = "font; crossorigin";	// fonts are always fetched in cors mode
+			else if (ext.equals("png") || ext.equals("jpg") || ext.equals("gif") || ext.equals("svg") || ext.equals("ico"))
+				as = "image";
+			else
+				continue;
+			
+			if (sb.length() > 0)
+				sb.append(", ");
+			sb.append('<').append(url).append(">; rel=preload; as=").append(as);
+		}
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+	
 	/**
 	 * Render a simple JSON response message formatted as {result: bool, message: text}
 	 */
@@ -94,6 +258,45 @@ public class WebLib {
 		p.flush();	
 	}
 	
+	/**
+	 * Render a JSON object or array as the response
+	 */
+	public static void renderJSONResponse(HttpServletResponse response, Object json) throws IOException
+	{
+		response.setContentType("application/json");
+		ServletOutputStream p = response.getOutputStream();
+		p.print(json.toString());
+		p.flush();
+	}
+	
+	/**
+	 * Render the outcome of an AsyncActionHandler.  JSON objects and arrays are rendered as
+	 * is, null is left for the handler to have rendered, and anything else is rendered as
+	 * a standard successful response with the value as its message.  Errors are rendered
+	 * as a standard failed response, with status 504 for a timeout and 500 otherwise.
+	 * @param response The HTTP response
+	 * @param result Result of the handler
+	 * @param error Failure of the handler, or null if it succeeded
+	 */
+	public static void renderAsyncResult(HttpServletResponse response, Object result, Throwable error) throws IOException
+	{
+		if (error instanceof CompletionException && error.getCause() != null)
+			error = error.getCause();
+		if (error != null)
+		{
+			if (response.isCommitted())
+				return;
+			response.setStatus(error instanceof TimeoutException ? HttpServletResponse.SC_GATEWAY_TIMEOUT : HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			renderStandardJSONResponse(response, false, error.getMessage() != null ? error.getMessage() : error.toString());
+		}
+		else if (result instanceof JSONObject || result instanceof JSONArray)
+			renderJSONResponse(response, result);
+		else if (result instanceof Boolean)
+			renderStandardJSONResponse(response, (Boolean)result, "");
+		else if (result != null)
+			renderStandardJSONResponse(response, true, result.toString());
+	}
+	
 	/**
 	 * Render a simple JSON response message formatted as {result: bool, message: text}
 	 */
@@ -4,12 +4,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServlet;
 
 import org.apache.catalina.Context;
 import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Wrapper;
 import org.apache.catalina.connector.Connector;
 import org.apache.catalina.startup.Tomcat;
 
@@ -32,6 +34,7 @@ public class WebServer {
 	protected Tomcat _tomcat;		// instance of the tomcat server
 	protected Context _context;		// instance of our base context
 	protected int _serverPort;		// port to run on
+	protected File _workDir;		// base directory of the server
 	
 	/**
 	 * Constructor.  Create a new web server.
@@ -54,10 +57,26 @@ public class WebServer {
 	 * @param secure True when using HTTPS
 	 */
 	public WebServer(int port, Properties connectorAttributes, String workDir, boolean secure) {
+		this(port, connectorAttributes, workDir, secure, null);
+	}
+	
+	/**
+	 * Constructor.  Create a new webserver whose requests run on a custom executor, for
+	 * example a VirtualThreadExecutor.  The connector's thread pool attributes (minSpareThreads,
+	 * maxThreads) don't apply to a custom executor, which must do its own limiting.
+	 * 
+	 * @param port Network port to bind for webserver
+	 * @param connectorAttributes Properties to configure webserver, or null for defaults
+	 * @param workDir Working directory for webserver or null to use the default
+	 * @param secure True when using HTTPS
+	 * @param executor Executor to run requests, or null for the connector's own thread pool
+	 */
+	public WebServer(int port, Properties connectorAttributes, String workDir, boolean secure, Executor executor) {
 		_serverPort = port;
 		_tomcat = new Tomcat();
 		_tomcat.setPort(_serverPort);
-		_tomcat.setBaseDir(workDir==null?DEF_WORK_DIR:workDir);
+		_workDir = new File(workDir==null?DEF_WORK_DIR:workDir);
+		_tomcat.setBaseDir(_workDir.getPath());
 		_tomcat.getHost().setAppBase(".");
 
 		// create base connector
@@ -80,6 +99,13 @@ public class WebServer {
 			c.setAttribute(p, connectorAttributes.getProperty(p));
 		}
 		
+		if (executor != null)
+		{
+			// the connector only creates its own pool when no executor is set
+			c.getProtocolHandler().setExecutor(executor);
+			logger.info("Using custom request executor " + executor.getClass().getSimpleName());
+		}
+		
 		if (secure)
 		{
 			// configure https scheme
@@ -93,18 +119,45 @@ public class WebServer {
 
 	/**
 	 * Register a new servlet for the webserver.  Note: In the future we might use the Servlet Annotations to 
-	 * determine the name and URL patterns.
+	 * determine the name and URL patterns.  StaticResourceServlets are initialized when the
+	 * server starts, so their asset bundles are published before any template renders.
 	 * 
 	 * @param srvlet Servlet object
 	 * @param name Name of servlet
 	 * @param patterns Url patterns to route to servlet
 	 */
 	public void registerServlet(HttpServlet srvlet, String name, String[] patterns) {
-		_tomcat.addServlet(CONTEXT_PATH, name, srvlet);
+		registerServlet(srvlet, name, patterns, srvlet instanceof StaticResourceServlet);
+	}
+	
+	/**
+	 * Register a new servlet for the webserver.
+	 * 
+	 * @param srvlet Servlet object
+	 * @param name Name of servlet
+	 * @param patterns Url patterns to route to servlet
+	 * @param loadOnStartup True to initialize the servlet when the server starts, rather
+	 * than on its first request (e.g. to precompile templates before taking traffic)
+	 */
+	public void registerServlet(HttpServlet srvlet, String name, String[] patterns, boolean loadOnStartup) {
+		final Wrapper w = _tomcat.addServlet(CONTEXT_PATH, name, srvlet);
+		// allows AsyncActionHandlers to release the container thread while they wait
+		w.setAsyncSupported(true);
+		if (loadOnStartup)
+			w.setLoadOnStartup(1);
 		for (String p:patterns)
 			_context.addServletMappingDecoded(p, name);
 	}
 	
+	/**
+	 * Get the working directory of the webserver, where servlets may keep temporary files
+	 * (for example StaticResourceServlet.enableSendfile)
+	 * @return The work directory
+	 */
+	public File getWorkDirectory() {
+		return _workDir;
+	}
+	
 	/**
 	 * Start the webserver - nothing binds or runs until this is called
 	 * @throws LifecycleException
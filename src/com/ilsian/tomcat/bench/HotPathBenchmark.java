@@ -0,0 +1,322 @@
+package com.ilsian.tomcat.bench;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.ilsian.commonweb.res.Loader;
+import com.ilsian.tomcat.ActionHandler;
+import com.ilsian.tomcat.AppServlet;
+import com.ilsian.tomcat.FTLDataMapFactory;
+import com.ilsian.tomcat.FTLServlet;
+import com.ilsian.tomcat.LatencyHistogram;
+import com.ilsian.tomcat.MetricsRegistry;
+import com.ilsian.tomcat.StaticResourceServlet;
+import com.ilsian.tomcat.UserInfo;
+import com.ilsian.tomcat.UserSecurity;
+import com.ilsian.tomcat.WebLib;
+
+import freemarker.template.Configuration;
+
+/**
+ * HotPathBenchmark
+ * 
+ * Microbenchmarks of the request hot paths, run against MockHttpServletRequest and
+ * MockHttpServletResponse so only our code (and Freemarker) is measured:
+ * 
+ *   AppServlet routing by action and by path template, with and without metrics
+ *   AppServlet.serveTemplate of a 50 row table
+ *   FTLServlet.doGet of the same page
+ *   StaticResourceServlet.getClassResource from the class path and the memory cache
+ *   WebLib.renderStandardJSONResponse and renderArrayJSONResponse
+ *   Loader template lookup
+ * 
+ * Each benchmark is warmed up, then measured on one thread, JMH style.  Reported are
+ * throughput, latency percentiles (each call is timed, which adds a few tens of
+ * nanoseconds), bytes allocated per call and collections during the measurement, like
+ * JMH's '-prof gc'.  Allocation needs a JVM which counts it by thread, such as HotSpot.
+ * 
+ * Usage: HotPathBenchmark [warmupSeconds] [measureSeconds] [filter]
+ * 
+ * Only benchmarks whose names contain the filter are run.  Run with a fixed heap
+ * (e.g. -Xms512m -Xmx512m) so results are comparable between builds.
+ * 
+ * @author justin
+ *
+ */
+public class HotPathBenchmark {
+
+	// a benchmarked operation, returning a value which is consumed so it can't be optimized away
+	interface Op {
+		long run() throws Exception;
+	}
+	
+	static volatile long sSink;
+	
+	// minimal application, exposing template serving
+	static class BenchApp extends AppServlet {
+		private static final long serialVersionUID = 1L;
+		
+		BenchApp(UserSecurity security) {
+			super(security, "action");
+		}
+		
+		@Override
+		public HashMap createDataMap(UserInfo user, HttpServletRequest request) {
+			return null;
+		}
+		
+		void benchServeTemplate(UserInfo user, HttpServletRequest request, HttpServletResponse response, HashMap data) throws IOException {
+			serveTemplate(user, request, response, "BenchTable.ftl", data);
+		}
+	}
+	
+	// servlet config for initializing servlets outside a container
+	static class BenchConfig implements ServletConfig {
+		final String _name;
+		
+		BenchConfig(String name) {
+			_name = name;
+		}
+		
+		@Override
+		public String getServletName() {
+			return _name;
+		}
+		
+		@Override
+		public ServletContext getServletContext() {
+			return null;
+		}
+		
+		@Override
+		public String getInitParameter(String name) {
+			return null;
+		}
+		
+		@Override
+		public Enumeration<String> getInitParameterNames() {
+			return Collections.emptyEnumeration();
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		final int warmup = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		final int measure = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		final String filter = args.length > 2 ? args[2] : "";
+		
+		final UserInfo user = new UserInfo("bench", UserInfo.kLoginUser);
+		final UserSecurity security = new UserSecurity() {
+			@Override
+			public void handleAction(String action, UserInfo u, HttpServletRequest request, HttpServletResponse response) {
+			}
+			
+			@Override
+			public UserInfo getUserInfo(HttpServletRequest req, HttpServletResponse resp) {
+				return user;
+			}
+			
+			@Override
+			public void loginSecurityRedirect(HttpServletResponse response, int reqLevel, int currLevel) {
+			}
+		};
+		final HashMap<String, Object> pageData = createPageData(50);
+		final MockHttpServletResponse response = new MockHttpServletResponse();
+		final Map<String, Op> benchmarks = new LinkedHashMap<String, Op>();
+		
+		// AppServlet routing, to a handler with a tiny response
+		final byte [] ok = "ok".getBytes("UTF-8");
+		final ActionHandler okHandler = new ActionHandler() {
+			@Override
+			public void handleAction(String action, UserInfo u, HttpServletRequest request, HttpServletResponse resp) throws IOException {
+				resp.getOutputStream().write(ok);
+			}
+		};
+		final BenchApp app = new BenchApp(security);
+		for (String act:new String [] { "list", "detail", "save", "delete", "report", "ping" })
+			app.addGetHandler(act, okHandler);
+		app.addGetPath("/gui/orders/{id}", okHandler);
+		app.addGetPath("/gui/orders/{id}/items/{item}", okHandler);
+		app.init(new BenchConfig("APP"));
+		app.setMetrics(null);
+		final BenchApp meteredApp = new BenchApp(security);
+		meteredApp.addGetHandler("ping", okHandler);
+		meteredApp.init(new BenchConfig("APP"));
+		meteredApp.setMetrics(new MetricsRegistry());
+		
+		benchmarks.put("AppServlet.route.action", serviceOp(app, new MockHttpServletRequest("GET", "/app", null).setParameter("action", "ping"), response));
+		benchmarks.put("AppServlet.route.path", serviceOp(app, new MockHttpServletRequest("GET", "/gui", "/orders/42/items/7"), response));
+		benchmarks.put("AppServlet.route.metrics", serviceOp(meteredApp, new MockHttpServletRequest("GET", "/app", null).setParameter("action", "ping"), response));
+		
+		final MockHttpServletRequest templateRequest = new MockHttpServletRequest("GET", "/app", null);
+		benchmarks.put("AppServlet.serveTemplate", new Op() {
+			@Override
+			public long run() throws Exception {
+				templateRequest.recycle();
+				response.recycle();
+				app.benchServeTemplate(user, templateRequest, response, pageData);
+				return checked(response);
+			}
+		});
+		
+		// FTLServlet rendering the same page
+		final Configuration cfg = Loader.createTemplateLoader(HotPathBenchmark.class, "ftl");
+		final FTLServlet ftl = new FTLServlet(cfg, new FTLDataMapFactory() {
+			@Override
+			public HashMap<?, ?> getFTLDataMap(String tmplName) {
+				return pageData;
+			}
+		}).setMetrics(null);
+		ftl.init(new BenchConfig("FTL"));
+		benchmarks.put("FTLServlet.doGet", serviceOp(ftl, new MockHttpServletRequest("GET", "/ftl", "/BenchTable.ftl"), response));
+		
+		// static resources, read from the class path and served from the memory cache
+		final StaticResourceServlet srs = new StaticResourceServlet(Loader.class, 7).setMetrics(null);
+		srs.init(new BenchConfig("SRS"));
+		benchmarks.put("SRS.getClassResource", serviceOp(srs, new MockHttpServletRequest("GET", "/res", "/extbootstrap.css")
+				.setMappingPattern("/res/*"), response));
+		final StaticResourceServlet cached = new StaticResourceServlet(Loader.class, 7).enableMemoryCache(8*1024*1024).setMetrics(null);
+		cached.init(new BenchConfig("SRS"));
+		benchmarks.put("SRS.getClassResource.cached", serviceOp(cached, new MockHttpServletRequest("GET", "/res", "/extbootstrap.css")
+				.setMappingPattern("/res/*").setHeader("Accept-Encoding", "gzip, deflate"), response));
+		
+		// JSON responses
+		benchmarks.put("WebLib.renderStandardJSONResponse", new Op() {
+			@Override
+			public long run() throws Exception {
+				response.recycle();
+				WebLib.renderStandardJSONResponse(response, true, "Saved 3 records");
+				return checked(response);
+			}
+		});
+		final boolean [] success = { true, true, false, true, true };
+		final String [] messages = { "Saved", "Saved", "Name is required", "Saved", "Saved" };
+		benchmarks.put("WebLib.renderArrayJSONResponse", new Op() {
+			@Override
+			public long run() throws Exception {
+				response.recycle();
+				WebLib.renderArrayJSONResponse(response, success, messages);
+				return checked(response);
+			}
+		});
+		
+		// template lookup, as done for every page
+		benchmarks.put("Loader.getTemplate", new Op() {
+			@Override
+			public long run() throws Exception {
+				return cfg.getTemplate("BenchTable.ftl").hashCode();
+			}
+		});
+		
+		System.out.println(String.format("# warmup %ds, measure %ds, allocation %s", warmup, measure,
+				MetricsRegistry.enableAllocationSampling() ? "sampled" : "not available"));
+		System.out.println(String.format("%-36s %12s %10s %10s %10s %10s %10s %8s %8s", "Benchmark", "ops/s", "mean(us)",
+				"p50(us)", "p99(us)", "p99.9(us)", "B/op", "gc.count", "gc.ms"));
+		for (Map.Entry<String, Op> b:benchmarks.entrySet())
+		{
+			if (b.getKey().contains(filter))
+				run(b.getKey(), b.getValue(), warmup, measure);
+		}
+	}
+	
+	// serve a request through the servlet's public entry point
+	static Op serviceOp(final HttpServlet servlet, final MockHttpServletRequest request, final MockHttpServletResponse response) {
+		return new Op() {
+			@Override
+			public long run() throws Exception {
+				request.recycle();
+				response.recycle();
+				servlet.service(request, response);
+				response.finish();
+				return checked(response);
+			}
+		};
+	}
+	
+	// fail the benchmark if the request did
+	static long checked(MockHttpServletResponse response) throws ServletException {
+		if (response.getStatus() != HttpServletResponse.SC_OK || response.getBytesWritten() == 0)
+			throw new ServletException("Benchmark request failed, status " + response.getStatus());
+		return response.getBytesWritten();
+	}
+	
+	static HashMap<String, Object> createPageData(int rows) {
+		final List<Map<String, Object>> items = new ArrayList<Map<String, Object>>();
+		for (int i=0;i<rows;i++)
+		{
+			final Map<String, Object> item = new HashMap<String, Object>();
+			item.put("id", i);
+			item.put("name", "Item <" + i + "> & co");
+			item.put("price", 9.99 + i);
+			item.put("active", i % 3 != 0);
+			items.add(item);
+		}
+		final HashMap<String, Object> data = new HashMap<String, Object>();
+		data.put("title", "Benchmark Orders");
+		data.put("items", items);
+		return data;
+	}
+	
+	static void run(String name, Op op, int warmupSeconds, int measureSeconds) throws Exception {
+		loop(op, warmupSeconds * 1000000000L, null);
+		
+		final LatencyHistogram h = new LatencyHistogram();
+		final long gcCount = gcCount(), gcTime = gcTime();
+		final long allocated = MetricsRegistry.getThreadAllocatedBytes();
+		final long start = System.nanoTime();
+		final long ops = loop(op, measureSeconds * 1000000000L, h);
+		final long elapsed = System.nanoTime() - start;
+		final long allocatedPerOp = allocated >= 0 ? (MetricsRegistry.getThreadAllocatedBytes() - allocated) / ops : -1;
+		
+		System.out.println(String.format("%-36s %12.0f %10.3f %10.3f %10.3f %10.3f %10d %8d %8d", name, ops * 1e9 / elapsed,
+				h.getMean() / 1e3, h.getValueAtPercentile(50) / 1e3, h.getValueAtPercentile(99) / 1e3,
+				h.getValueAtPercentile(99.9) / 1e3, allocatedPerOp, gcCount() - gcCount, gcTime() - gcTime));
+	}
+	
+	// run an operation for a time, timing each call if a histogram is given
+	static long loop(Op op, long nanos, LatencyHistogram h) throws Exception {
+		long sink = 0;
+		long ops = 0;
+		long t = System.nanoTime();
+		final long end = t + nanos;
+		while (t < end)
+		{
+			sink += op.run();
+			final long now = System.nanoTime();
+			if (h != null)
+				h.record(now - t);
+			t = now;
+			ops++;
+		}
+		sSink = sink;
+		return ops;
+	}
+	
+	static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc:ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+	
+	static long gcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc:ManagementFactory.getGarbageCollectorMXBeans())
+			time += Math.max(0, gc.getCollectionTime());
+		return time;
+	}
+}
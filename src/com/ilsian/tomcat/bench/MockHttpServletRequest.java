@@ -0,0 +1,475 @@
+package com.ilsian.tomcat.bench;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.security.Principal;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletMapping;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpUpgradeHandler;
+import javax.servlet.http.MappingMatch;
+import javax.servlet.http.Part;
+
+/**
+ * MockHttpServletRequest - A lightweight request for driving servlets outside of a
+ * container, as the benchmarks do.  Only what the framework reads is modeled: method,
+ * paths, params, headers, attributes and the servlet mapping.  There is no session, body
+ * or async support.  Attributes are cleared by recycle(), so one request can be reused
+ * for every call of a benchmark, the way the container recycles its requests.
+ * 
+ * @author justin
+ *
+ */
+public class MockHttpServletRequest implements HttpServletRequest {
+
+	private final String _method;
+	private final String _servletPath;
+	private final String _pathInfo;
+	private String _pattern = "";
+	private final Map<String, String[]> _params = new LinkedHashMap<String, String[]>();
+	private final Map<String, String> _headers = new HashMap<String, String>();	// by lower case name
+	private final Map<String, Object> _attributes = new HashMap<String, Object>();
+	private final HttpServletMapping _mapping = new HttpServletMapping() {
+		@Override
+		public String getMatchValue() {
+			return "";
+		}
+		
+		@Override
+		public String getPattern() {
+			return _pattern;
+		}
+		
+		@Override
+		public String getServletName() {
+			return "";
+		}
+		
+		@Override
+		public MappingMatch getMappingMatch() {
+			return MappingMatch.PATH;
+		}
+	};
+	
+	/**
+	 * Constructor.  Create a request.
+	 * @param method HTTP method, e.g. 'GET'
+	 * @param servletPath Servlet path, e.g. '/app'
+	 * @param pathInfo Path after the servlet path, or null
+	 */
+	public MockHttpServletRequest(String method, String servletPath, String pathInfo) {
+		_method = method;
+		_servletPath = servletPath;
+		_pathInfo = pathInfo;
+	}
+	
+	/**
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public MockHttpServletRequest setParameter(String name, String value) {
+		_params.put(name, new String [] { value });
+		return this;
+	}
+	
+	/**
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public MockHttpServletRequest setHeader(String name, String value) {
+		_headers.put(name.toLowerCase(Locale.ENGLISH), value);
+		return this;
+	}
+	
+	/**
+	 * Set the URL pattern the request was mapped with, e.g. '/res/*'
+	 * @return this, to facilitate configuration in a single line
+	 */
+	public MockHttpServletRequest setMappingPattern(String pattern) {
+		_pattern = pattern;
+		return this;
+	}
+	
+	/**
+	 * Clear the attributes set while the request was served
+	 */
+	public void recycle() {
+		_attributes.clear();
+	}
+	
+	@Override
+	public String getMethod() {
+		return _method;
+	}
+	
+	@Override
+	public String getServletPath() {
+		return _servletPath;
+	}
+	
+	@Override
+	public String getPathInfo() {
+		return _pathInfo;
+	}
+	
+	@Override
+	public String getContextPath() {
+		return "";
+	}
+	
+	@Override
+	public String getRequestURI() {
+		return _pathInfo != null ? _servletPath + _pathInfo : _servletPath;
+	}
+	
+	@Override
+	public StringBuffer getRequestURL() {
+		return new StringBuffer("http://localhost").append(getRequestURI());
+	}
+	
+	@Override
+	public String getQueryString() {
+		if (_params.isEmpty())
+			return null;
+		final StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String[]> e:_params.entrySet())
+		{
+			if (sb.length() > 0)
+				sb.append('&');
+			sb.append(e.getKey()).append('=').append(e.getValue()[0]);
+		}
+		return sb.toString();
+	}
+	
+	@Override
+	public HttpServletMapping getHttpServletMapping() {
+		return _mapping;
+	}
+	
+	@Override
+	public String getParameter(String name) {
+		final String [] values = _params.get(name);
+		return values != null ? values[0] : null;
+	}
+	
+	@Override
+	public Enumeration<String> getParameterNames() {
+		return Collections.enumeration(_params.keySet());
+	}
+	
+	@Override
+	public String[] getParameterValues(String name) {
+		return _params.get(name);
+	}
+	
+	@Override
+	public Map<String, String[]> getParameterMap() {
+		return Collections.unmodifiableMap(_params);
+	}
+	
+	@Override
+	public String getHeader(String name) {
+		return _headers.get(name.toLowerCase(Locale.ENGLISH));
+	}
+	
+	@Override
+	public Enumeration<String> getHeaders(String name) {
+		final String value = getHeader(name);
+		return value != null ? Collections.enumeration(Collections.singleton(value)) : Collections.<String>emptyEnumeration();
+	}
+	
+	@Override
+	public Enumeration<String> getHeaderNames() {
+		return Collections.enumeration(_headers.keySet());
+	}
+	
+	@Override
+	public long getDateHeader(String name) {
+		return -1;
+	}
+	
+	@Override
+	public int getIntHeader(String name) {
+		final String value = getHeader(name);
+		return value != null ? Integer.parseInt(value) : -1;
+	}
+	
+	@Override
+	public Object getAttribute(String name) {
+		return _attributes.get(name);
+	}
+	
+	@Override
+	public Enumeration<String> getAttributeNames() {
+		return Collections.enumeration(_attributes.keySet());
+	}
+	
+	@Override
+	public void setAttribute(String name, Object o) {
+		_attributes.put(name, o);
+	}
+	
+	@Override
+	public void removeAttribute(String name) {
+		_attributes.remove(name);
+	}
+	
+	@Override
+	public String getCharacterEncoding() {
+		return "UTF-8";
+	}
+	
+	@Override
+	public void setCharacterEncoding(String env) {
+	}
+	
+	@Override
+	public int getContentLength() {
+		return -1;
+	}
+	
+	@Override
+	public long getContentLengthLong() {
+		return -1;
+	}
+	
+	@Override
+	public String getContentType() {
+		return null;
+	}
+	
+	@Override
+	public ServletInputStream getInputStream() {
+		throw new UnsupportedOperationException("Mock requests have no body");
+	}
+	
+	@Override
+	public BufferedReader getReader() {
+		return new BufferedReader(new StringReader(""));
+	}
+	
+	@Override
+	public String getProtocol() {
+		return "HTTP/1.1";
+	}
+	
+	@Override
+	public String getScheme() {
+		return "http";
+	}
+	
+	@Override
+	public String getServerName() {
+		return "localhost";
+	}
+	
+	@Override
+	public int getServerPort() {
+		return 80;
+	}
+	
+	@Override
+	public String getRemoteAddr() {
+		return "127.0.0.1";
+	}
+	
+	@Override
+	public String getRemoteHost() {
+		return "localhost";
+	}
+	
+	@Override
+	public int getRemotePort() {
+		return 50000;
+	}
+	
+	@Override
+	public String getLocalName() {
+		return "localhost";
+	}
+	
+	@Override
+	public String getLocalAddr() {
+		return "127.0.0.1";
+	}
+	
+	@Override
+	public int getLocalPort() {
+		return 80;
+	}
+	
+	@Override
+	public Locale getLocale() {
+		return Locale.US;
+	}
+	
+	@Override
+	public Enumeration<Locale> getLocales() {
+		return Collections.enumeration(Collections.singleton(Locale.US));
+	}
+	
+	@Override
+	public boolean isSecure() {
+		return false;
+	}
+	
+	@Override
+	public RequestDispatcher getRequestDispatcher(String path) {
+		return null;
+	}
+	
+	@Override
+	@Deprecated
+	public String getRealPath(String path) {
+		return null;
+	}
+	
+	@Override
+	public ServletContext getServletContext() {
+		return null;
+	}
+	
+	@Override
+	public AsyncContext startAsync() {
+		throw new IllegalStateException("Mock requests are not async");
+	}
+	
+	@Override
+	public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) {
+		throw new IllegalStateException("Mock requests are not async");
+	}
+	
+	@Override
+	public boolean isAsyncStarted() {
+		return false;
+	}
+	
+	@Override
+	public boolean isAsyncSupported() {
+		return false;
+	}
+	
+	@Override
+	public AsyncContext getAsyncContext() {
+		throw new IllegalStateException("Mock requests are not async");
+	}
+	
+	@Override
+	public DispatcherType getDispatcherType() {
+		return DispatcherType.REQUEST;
+	}
+	
+	@Override
+	public String getAuthType() {
+		return null;
+	}
+	
+	@Override
+	public Cookie[] getCookies() {
+		return null;
+	}
+	
+	@Override
+	public String getPathTranslated() {
+		return null;
+	}
+	
+	@Override
+	public String getRemoteUser() {
+		return null;
+	}
+	
+	@Override
+	public boolean isUserInRole(String role) {
+		return false;
+	}
+	
+	@Override
+	public Principal getUserPrincipal() {
+		return null;
+	}
+	
+	@Override
+	public String getRequestedSessionId() {
+		return null;
+	}
+	
+	@Override
+	public HttpSession getSession(boolean create) {
+		return null;
+	}
+	
+	@Override
+	public HttpSession getSession() {
+		return null;
+	}
+	
+	@Override
+	public String changeSessionId() {
+		throw new IllegalStateException("Mock requests have no session");
+	}
+	
+	@Override
+	public boolean isRequestedSessionIdValid() {
+		return false;
+	}
+	
+	@Override
+	public boolean isRequestedSessionIdFromCookie() {
+		return false;
+	}
+	
+	@Override
+	public boolean isRequestedSessionIdFromURL() {
+		return false;
+	}
+	
+	@Override
+	@Deprecated
+	public boolean isRequestedSessionIdFromUrl() {
+		return false;
+	}
+	
+	@Override
+	public boolean authenticate(HttpServletResponse response) {
+		return false;
+	}
+	
+	@Override
+	public void login(String username, String password) {
+	}
+	
+	@Override
+	public void logout() {
+	}
+	
+	@Override
+	public Collection<Part> getParts() {
+		return Collections.emptyList();
+	}
+	
+	@Override
+	public Part getPart(String name) {
+		return null;
+	}
+	
+	@Override
+	public <T extends HttpUpgradeHandler> T upgrade(Class<T> handlerClass) {
+		throw new UnsupportedOperationException("Mock requests can't upgrade");
+	}
+}
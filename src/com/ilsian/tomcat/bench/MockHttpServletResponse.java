@@ -0,0 +1,287 @@
+package com.ilsian.tomcat.bench;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * MockHttpServletResponse - A lightweight response for driving servlets outside of a
+ * container.  The body is counted and discarded, so benchmarks measure the servlet
+ * rather than buffering; status and headers are kept for checking results.  Call
+ * recycle() between uses, the way the container recycles its responses.
+ * 
+ * @author justin
+ *
+ */
+public class MockHttpServletResponse implements HttpServletResponse {
+
+	private int _status = SC_OK;
+	private String _contentType = null;
+	private String _encoding = "ISO-8859-1";
+	private boolean _committed = false;
+	private long _bytes = 0;
+	private final Map<String, List<String>> _headers = new LinkedHashMap<String, List<String>>();
+	private PrintWriter _writer = null;
+	
+	private final ServletOutputStream _stream = new ServletOutputStream() {
+		@Override
+		public void write(int b) {
+			_bytes++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+			_bytes += len;
+		}
+		
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+		
+		@Override
+		public void setWriteListener(WriteListener listener) {
+			throw new UnsupportedOperationException("Mock responses are not asynchronous");
+		}
+	};
+	
+	/**
+	 * Reset for another request
+	 */
+	public void recycle() {
+		_status = SC_OK;
+		_contentType = null;
+		_encoding = "ISO-8859-1";
+		_committed = false;
+		_bytes = 0;
+		_headers.clear();
+		_writer = null;
+	}
+	
+	/**
+	 * Flush anything written to the writer, as the container does when a request ends
+	 */
+	public void finish() {
+		if (_writer != null)
+			_writer.flush();
+	}
+	
+	/**
+	 * @return Bytes of body written
+	 */
+	public long getBytesWritten() {
+		return _bytes;
+	}
+	
+	@Override
+	public ServletOutputStream getOutputStream() {
+		return _stream;
+	}
+	
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (_writer == null)
+			_writer = new PrintWriter(new OutputStreamWriter(_stream, _encoding));
+		return _writer;
+	}
+	
+	@Override
+	public String getCharacterEncoding() {
+		return _encoding;
+	}
+	
+	@Override
+	public void setCharacterEncoding(String charset) {
+		_encoding = charset;
+	}
+	
+	@Override
+	public String getContentType() {
+		return _contentType;
+	}
+	
+	@Override
+	public void setContentType(String type) {
+		_contentType = type;
+	}
+	
+	@Override
+	public void setContentLength(int len) {
+		setIntHeader("Content-Length", len);
+	}
+	
+	@Override
+	public void setContentLengthLong(long len) {
+		setHeader("Content-Length", Long.toString(len));
+	}
+	
+	@Override
+	public void setBufferSize(int size) {
+	}
+	
+	@Override
+	public int getBufferSize() {
+		return 8192;
+	}
+	
+	@Override
+	public void flushBuffer() {
+		_committed = true;
+	}
+	
+	@Override
+	public void resetBuffer() {
+	}
+	
+	@Override
+	public boolean isCommitted() {
+		return _committed;
+	}
+	
+	@Override
+	public void reset() {
+		recycle();
+	}
+	
+	@Override
+	public void setLocale(Locale loc) {
+	}
+	
+	@Override
+	public Locale getLocale() {
+		return Locale.US;
+	}
+	
+	@Override
+	public void addCookie(Cookie cookie) {
+		addHeader("Set-Cookie", cookie.getName() + "=" + cookie.getValue());
+	}
+	
+	@Override
+	public boolean containsHeader(String name) {
+		return _headers.containsKey(name.toLowerCase(Locale.ENGLISH));
+	}
+	
+	@Override
+	public String encodeURL(String url) {
+		return url;
+	}
+	
+	@Override
+	public String encodeRedirectURL(String url) {
+		return url;
+	}
+	
+	@Override
+	@Deprecated
+	public String encodeUrl(String url) {
+		return url;
+	}
+	
+	@Override
+	@Deprecated
+	public String encodeRedirectUrl(String url) {
+		return url;
+	}
+	
+	@Override
+	public void sendError(int sc, String msg) {
+		_status = sc;
+		_committed = true;
+	}
+	
+	@Override
+	public void sendError(int sc) {
+		sendError(sc, null);
+	}
+	
+	@Override
+	public void sendRedirect(String location) {
+		_status = SC_FOUND;
+		setHeader("Location", location);
+		_committed = true;
+	}
+	
+	@Override
+	public void setDateHeader(String name, long date) {
+		setHeader(name, Long.toString(date));
+	}
+	
+	@Override
+	public void addDateHeader(String name, long date) {
+		addHeader(name, Long.toString(date));
+	}
+	
+	@Override
+	public void setHeader(String name, String value) {
+		_headers.remove(name.toLowerCase(Locale.ENGLISH));
+		addHeader(name, value);
+	}
+	
+	@Override
+	public void addHeader(String name, String value) {
+		final String key = name.toLowerCase(Locale.ENGLISH);
+		List<String> values = _headers.get(key);
+		if (values == null)
+		{
+			values = new ArrayList<String>(1);
+			_headers.put(key, values);
+		}
+		values.add(value);
+	}
+	
+	@Override
+	public void setIntHeader(String name, int value) {
+		setHeader(name, Integer.toString(value));
+	}
+	
+	@Override
+	public void addIntHeader(String name, int value) {
+		addHeader(name, Integer.toString(value));
+	}
+	
+	@Override
+	public void setStatus(int sc) {
+		_status = sc;
+	}
+	
+	@Override
+	@Deprecated
+	public void setStatus(int sc, String sm) {
+		_status = sc;
+	}
+	
+	@Override
+	public int getStatus() {
+		return _status;
+	}
+	
+	@Override
+	public String getHeader(String name) {
+		final List<String> values = _headers.get(name.toLowerCase(Locale.ENGLISH));
+		return values != null ? values.get(0) : null;
+	}
+	
+	@Override
+	public Collection<String> getHeaders(String name) {
+		final List<String> values = _headers.get(name.toLowerCase(Locale.ENGLISH));
+		return values != null ? Collections.unmodifiableList(values) : Collections.<String>emptyList();
+	}
+	
+	@Override
+	public Collection<String> getHeaderNames() {
+		return Collections.unmodifiableSet(_headers.keySet());
+	}
+}
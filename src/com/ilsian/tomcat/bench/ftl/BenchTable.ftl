@@ -0,0 +1,15 @@
+<html lang="en">
+<head>
+<title>${title}</title>
+<#include "CommonJsCss.ftl">
+</head>
+<body>
+<h3>${title}</h3>
+<table class="table table-striped">
+<tr><th>Id</th><th>Name</th><th>Price</th><th>Status</th></tr>
+<#list items as item>
+<tr class="${item?item_parity}"><td>${item.id}</td><td>${item.name?html}</td><td>${item.price?string("0.00")}</td><td><#if item.active>Active<#else>Retired</#if></td></tr>
+</#list>
+</table>
+</body>
+</html>
@@ -0,0 +1,169 @@
+package com.ilsian.tomcat.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.ilsian.tomcat.VirtualThreadExecutor;
+import com.ilsian.tomcat.WebServer;
+
+/**
+ * ExecutorBenchmark
+ * 
+ * Compares the default platform thread pool (connector.props, 12 threads) against the
+ * VirtualThreadExecutor on an I/O bound request: each request sleeps, as if waiting on an
+ * LDAP bind or back end call.  Both servers are driven by the same number of concurrent
+ * clients for the same time, and throughput and latency are printed for each.
+ * 
+ * Usage: ExecutorBenchmark [clients] [seconds] [ioMillis] [maxConcurrent]
+ * 
+ * Virtual threads need Java 21; on older JVMs only the platform pool is measured.
+ * 
+ * @author justin
+ *
+ */
+public class ExecutorBenchmark {
+
+	static final int MAX_CONSECUTIVE_ERRORS = 50;	// a client gives up after this many failures in a row
+	static final long MAX_BACKOFF_MILLIS = 500;		// longest a client waits after a failure
+
+	// simulates an I/O bound handler
+	static class SleepServlet extends HttpServlet {
+		private static final long serialVersionUID = 1L;
+		final long _ioMillis;
+		
+		SleepServlet(long ioMillis) {
+			_ioMillis = ioMillis;
+		}
+		
+		@Override
+		protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			try {
+				Thread.sleep(_ioMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			response.setContentType("text/plain");
+			response.getOutputStream().print("ok");
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		final int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		final long ioMillis = args.length > 2 ? Long.parseLong(args[2]) : 50;
+		final int maxConcurrent = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+		
+		System.out.println(String.format("%d clients, %ds, %dms simulated I/O per request", clients, seconds, ioMillis));
+		run("platform pool", 9990, null, clients, seconds, ioMillis);
+		
+		final VirtualThreadExecutor vte = VirtualThreadExecutor.create(maxConcurrent);
+		if (vte != null)
+			run("virtual threads (max " + maxConcurrent + ")", 9991, vte, clients, seconds, ioMillis);
+		else
+			System.out.println("virtual threads: not available on Java " + System.getProperty("java.version"));
+		System.exit(0);
+	}
+	
+	static void run(String name, int port, VirtualThreadExecutor executor, int clients, int seconds, long ioMillis) throws Exception {
+		final WebServer server = new WebServer(port, null, null, false, executor);
+		server.registerServlet(new SleepServlet(ioMillis), "SLEEP", new String [] { "/sleep" });
+		server.startUp();
+		try {
+			measure(name, port, clients, seconds);
+		} finally {
+			// stop before the next server is measured, so they don't compete
+			try {
+				server.shutDown();
+			} catch (Exception e) {
+				System.err.println(name + ": shutdown failed: " + e);
+			}
+		}
+	}
+		
+	static void measure(String name, int port, int clients, int seconds) throws Exception {
+		final URL url = new URL("http://localhost:" + port + "/sleep");
+		final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		final AtomicInteger errors = new AtomicInteger();
+		final long [][] latencies = new long[clients][];
+		final int [] counts = new int[clients];
+		
+		final ExecutorService pool = Executors.newFixedThreadPool(clients);
+		for (int i=0;i<clients;i++)
+		{
+			final int client = i;
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					long [] lat = new long[1024];
+					int n = 0;
+					int failures = 0;
+					final byte [] buf = new byte[256];
+					while (System.nanoTime() < end)
+					{
+						final long t0 = System.nanoTime();
+						try {
+							final HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+							final InputStream is = conn.getInputStream();
+							while (is.read(buf) != -1)
+								;
+							is.close();
+							failures = 0;
+						} catch (IOException e) {
+							errors.incrementAndGet();
+							// back off rather than spin against a failed server, and give up if it stays down
+							if (++failures >= MAX_CONSECUTIVE_ERRORS)
+								break;
+							try {
+								Thread.sleep(Math.min(MAX_BACKOFF_MILLIS, 1L << Math.min(failures, 10)));
+							} catch (InterruptedException ie) {
+								Thread.currentThread().interrupt();
+								break;
+							}
+							continue;
+						}
+						if (n == lat.length)
+							lat = Arrays.copyOf(lat, n * 2);
+						lat[n++] = System.nanoTime() - t0;
+					}
+					latencies[client] = lat;
+					counts[client] = n;
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+		
+		int total = 0;
+		for (int c:counts)
+			total += c;
+		final long [] all = new long[total];
+		int pos = 0;
+		for (int i=0;i<clients;i++)
+		{
+			System.arraycopy(latencies[i], 0, all, pos, counts[i]);
+			pos += counts[i];
+		}
+		Arrays.sort(all);
+		System.out.println(String.format("%-28s %8.1f req/s  p50 %6.1fms  p99 %6.1fms  max %6.1fms  errors %d",
+				name, total / (double)seconds,
+				percentile(all, 0.50), percentile(all, 0.99), total > 0 ? all[total - 1] / 1e6 : 0.0,
+				errors.get()));
+	}
+	
+	static double percentile(long [] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		return sorted[Math.min(sorted.length - 1, (int)(p * sorted.length))] / 1e6;
+	}
+}
@@ -0,0 +1,628 @@
+package com.ilsian.tomcat.example;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONObject;
+
+import com.ilsian.commonweb.res.Loader;
+import com.ilsian.tomcat.FTLDataMapFactory;
+import com.ilsian.tomcat.FTLServlet;
+import com.ilsian.tomcat.LatencyHistogram;
+import com.ilsian.tomcat.StaticResourceServlet;
+import com.ilsian.tomcat.UserInfo;
+import com.ilsian.tomcat.UserSecurity;
+import com.ilsian.tomcat.VirtualThreadExecutor;
+import com.ilsian.tomcat.WebLib;
+import com.ilsian.tomcat.WebServer;
+
+/**
+ * LoadTest
+ *
+ * End to end load test of an embedded WebServer.  Starts a server on localhost with the
+ * example servlets (static resources, a plain FTL template, the HelloWorld AppServlet and
+ * a POST back to it) and drives it over keep-alive HTTP/1.1 connections, one per client.
+ * Nothing outside this JVM is needed.
+ *
+ * Two client models are supported:
+ *
+ * closed - each client sends its next request as soon as the last one completes, or at
+ * most every clients/rate seconds when a rate is given.  A closed loop client slows down
+ * whenever the server does, so it under reports stalls (coordinated omission); corrected
+ * latencies fill in the requests a stall held back, see LatencyHistogram.recordCorrected.
+ * Unpaced clients expect their own mean warmup latency between requests.
+ *
+ * open - requests are sent on a fixed schedule at the given total rate, as wrk2 does.  A
+ * client which falls behind sends back to back until it catches up, and corrected latency
+ * is measured from when the request should have been sent rather than when it was.
+ *
+ * Raw and corrected percentiles are reported for each request type and overall.  The
+ * results are written as JSON, to stdout or a file, so runs against different connector
+ * settings or releases can be compared; a readable summary goes to stderr.
+ *
+ * Usage: LoadTest [key=value ...]
+ *   mode=closed|open   client model (closed)
+ *   clients=N          concurrent connections (16)
+ *   rate=N             total requests per second, required for open (unpaced)
+ *   seconds=N          measured duration (10)
+ *   warmup=N           seconds run before measuring (3)
+ *   mix=type:weight,.. request mix of static, ftl, app, post (static:50,ftl:20,app:20,post:10)
+ *   port=N             server port (9992)
+ *   props=file         connector properties, instead of connector.props
+ *   virtual=N          run requests on virtual threads, at most N at once (Java 21)
+ *   out=file           write the JSON results to a file instead of stdout
+ *
+ * @author justin
+ *
+ */
+public class LoadTest {
+
+	static final double [] PERCENTILES = { 50, 90, 99, 99.9 };
+	static final String [] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+	
+	/**
+	 * The kinds of request in the mix, and the request each sends.
+	 */
+	enum RequestType {
+		STATIC("GET", "/res/extbootstrap.css", null),
+		FTL("GET", "/ftl/TestTemplate.ftl", null),
+		APP("GET", "/hello", null),
+		POST("POST", "/hello?ftl=HelloWorld.ftl", "action=save&message=load+test");
+		
+		final String mMethod;	// http method
+		final String mPath;		// path and query
+		final String mBody;		// form body, or null for none
+		
+		RequestType(String method, String path, String body) {
+			mMethod = method;
+			mPath = path;
+			mBody = body;
+		}
+		
+		String getName() {
+			return name().toLowerCase();
+		}
+		
+		byte [] toRequest(int port) throws IOException {
+			final StringBuilder sb = new StringBuilder(256);
+			sb.append(mMethod).append(' ').append(mPath).append(" HTTP/1.1\r\n");
+			sb.append("Host: localhost:").append(port).append("\r\n");
+			sb.append("User-Agent: LoadTest\r\n");
+			sb.append("Accept-Encoding: gzip\r\n");
+			if (mBody != null)
+			{
+				sb.append("Content-Type: application/x-www-form-urlencoded\r\n");
+				sb.append("Content-Length: ").append(mBody.length()).append("\r\n");
+			}
+			sb.append("\r\n");
+			if (mBody != null)
+				sb.append(mBody);
+			return sb.toString().getBytes("ISO-8859-1");
+		}
+	}
+	
+	/**
+	 * Latency and outcome counts for one request type, shared by all clients.
+	 */
+	static class TypeStats {
+		final LatencyHistogram mRaw = new LatencyHistogram();			///< Time from send to response
+		final LatencyHistogram mCorrected = new LatencyHistogram();		///< Latency corrected for coordinated omission
+		final AtomicLong mErrors = new AtomicLong();					///< Failed requests, by status or I/O error
+	}
+	
+	/**
+	 * A minimal keep-alive HTTP/1.1 client connection.  Responses are read and discarded;
+	 * only the status is returned.  The connection is reopened whenever the server closes it.
+	 */
+	static class Connection {
+		final int _port;
+		Socket _socket;
+		InputStream _in;
+		OutputStream _out;
+		final StringBuilder _line = new StringBuilder(128);
+		final byte [] _discard = new byte[16*1024];
+		
+		Connection(int port) {
+			_port = port;
+		}
+		
+		/**
+		 * Send a request and read its response
+		 * @param request The complete request
+		 * @return The response status
+		 * @throws IOException If the exchange fails, in which case the connection is closed
+		 */
+		int exchange(byte [] request) throws IOException {
+			try {
+				if (_socket == null)
+					open();
+				_out.write(request);
+				_out.flush();
+				return readResponse();
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+		
+		private void open() throws IOException {
+			_socket = new Socket();
+			_socket.setTcpNoDelay(true);
+			_socket.connect(new InetSocketAddress("localhost", _port), 5000);
+			_socket.setSoTimeout(30000);
+			_in = new BufferedInputStream(_socket.getInputStream(), 16*1024);
+			_out = _socket.getOutputStream();
+		}
+		
+		void close() {
+			if (_socket != null)
+			{
+				try {
+					_socket.close();
+				} catch (IOException ignore) {
+				}
+				_socket = null;
+			}
+		}
+		
+		private int readResponse() throws IOException {
+			final String statusLine = readLine();
+			final int sp = statusLine.indexOf(' ');
+			if (!statusLine.startsWith("HTTP/1.") || sp < 0 || statusLine.length() < sp + 4)
+				throw new IOException("Bad status line: " + statusLine);
+			final int status = Integer.parseInt(statusLine.substring(sp + 1, sp + 4));
+			
+			long length = -1;
+			boolean chunked = false;
+			boolean closing = statusLine.startsWith("HTTP/1.0");
+			String header;
+			while ((header = readLine()).length() > 0)
+			{
+				final int colon = header.indexOf(':');
+				if (colon < 0)
+					continue;
+				final String name = header.substring(0, colon).trim();
+				final String value = header.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length"))
+					length = Long.parseLong(value);
+				else if (name.equalsIgnoreCase("Transfer-Encoding"))
+					chunked = value.equalsIgnoreCase("chunked");
+				else if (name.equalsIgnoreCase("Connection"))
+					closing = value.equalsIgnoreCase("close");
+			}
+			
+			if (chunked)
+			{
+				long size;
+				while ((size = Long.parseLong(stripExtension(readLine()), 16)) > 0)
+				{
+					skip(size);
+					readLine();
+				}
+				// trailers
+				while (readLine().length() > 0)
+					;
+			}
+			else if (length >= 0)
+				skip(length);
+			else if (status != HttpServletResponse.SC_NO_CONTENT && status != HttpServletResponse.SC_NOT_MODIFIED)
+			{
+				// body runs to the end of the connection
+				while (_in.read(_discard) != -1)
+					;
+				closing = true;
+			}
+			
+			if (closing)
+				close();
+			return status;
+		}
+		
+		private static String stripExtension(String chunkSize) {
+			final int semi = chunkSize.indexOf(';');
+			return (semi < 0 ? chunkSize : chunkSize.substring(0, semi)).trim();
+		}
+		
+		private void skip(long n) throws IOException {
+			while (n > 0)
+			{
+				final int len = _in.read(_discard, 0, (int)Math.min(n, _discard.length));
+				if (len < 0)
+					throw new IOException("Connection closed in response body");
+				n -= len;
+			}
+		}
+		
+		private String readLine() throws IOException {
+			_line.setLength(0);
+			int c;
+			while ((c = _in.read()) != '\n')
+			{
+				if (c < 0)
+					throw new IOException("Connection closed by server");
+				if (c != '\r')
+					_line.append((char)c);
+			}
+			return _line.toString();
+		}
+	}
+	
+	/**
+	 * One client: a connection driven by the closed or open loop until the test ends.
+	 */
+	static class Client implements Runnable {
+		final Connection _conn;
+		final Random _random;
+		final byte [][] _requests;
+		final int [] _cumulativeWeights;
+		final TypeStats [] _stats;
+		final boolean _open;
+		final long _interval;		// ns between this client's requests, 0 when unpaced
+		final long _measureStart;
+		final long _end;
+		
+		Client(int id, int port, byte [][] requests, int [] cumulativeWeights, TypeStats [] stats,
+				boolean open, long interval, long measureStart, long end) {
+			_conn = new Connection(port);
+			_random = new Random(id);
+			_requests = requests;
+			_cumulativeWeights = cumulativeWeights;
+			_stats = stats;
+			_open = open;
+			_interval = interval;
+			_measureStart = measureStart;
+			_end = end;
+		}
+		
+		@Override
+		public void run() {
+			// stagger paced clients over one interval so they don't send in lock step
+			long next = System.nanoTime() + (_interval > 0 ? (long)(_random.nextDouble() * _interval) : 0);
+			long expected = _interval;
+			long warmupSum = 0;
+			long warmupCount = 0;
+			boolean measuring = false;
+			while (true)
+			{
+				if (_interval > 0)
+				{
+					long wait;
+					while ((wait = next - System.nanoTime()) > 0)
+						LockSupport.parkNanos(wait);
+				}
+				final long intended = _interval > 0 ? next : System.nanoTime();
+				if (intended - _end >= 0)
+					break;
+				if (!measuring && intended - _measureStart >= 0)
+				{
+					measuring = true;
+					if (_interval == 0 && warmupCount > 0)
+						expected = warmupSum / warmupCount;
+				}
+				
+				final int type = pick();
+				final long sent = System.nanoTime();
+				int status;
+				try {
+					status = _conn.exchange(_requests[type]);
+				} catch (IOException e) {
+					status = -1;
+				}
+				final long done = System.nanoTime();
+				
+				if (measuring)
+				{
+					final TypeStats stats = _stats[type];
+					if (status < 200 || status >= 400)
+						stats.mErrors.incrementAndGet();
+					else
+					{
+						stats.mRaw.record(done - sent);
+						if (_open)
+							stats.mCorrected.record(done - intended);
+						else
+							stats.mCorrected.recordCorrected(done - sent, expected);
+					}
+				}
+				else
+				{
+					warmupSum += done - sent;
+					warmupCount++;
+				}
+				
+				if (_interval > 0)
+				{
+					next += _interval;
+					// a closed loop never catches up on missed requests, that is what correction is for
+					if (!_open && next - done < 0)
+						next = done;
+				}
+			}
+			_conn.close();
+		}
+		
+		private int pick() {
+			final int r = _random.nextInt(_cumulativeWeights[_cumulativeWeights.length - 1]);
+			int i = 0;
+			while (r >= _cumulativeWeights[i])
+				i++;
+			return i;
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		final Map<String, String> opts = new HashMap<String, String>();
+		for (String arg:args)
+		{
+			final int eq = arg.indexOf('=');
+			if (eq < 0)
+				usage("Bad argument: " + arg);
+			opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		final String mode = option(opts, "mode", "closed");
+		if (!mode.equals("closed") && !mode.equals("open"))
+			usage("Unknown mode: " + mode);
+		final boolean open = mode.equals("open");
+		final int clients = Integer.parseInt(option(opts, "clients", "16"));
+		final double rate = Double.parseDouble(option(opts, "rate", "0"));
+		final int seconds = Integer.parseInt(option(opts, "seconds", "10"));
+		final int warmup = Integer.parseInt(option(opts, "warmup", "3"));
+		final int port = Integer.parseInt(option(opts, "port", "9992"));
+		final int virtual = Integer.parseInt(option(opts, "virtual", "0"));
+		final String propsFile = opts.get("props");
+		final String outFile = opts.get("out");
+		if (open && rate <= 0)
+			usage("An open loop needs a rate");
+		if (clients < 1 || seconds < 1 || warmup < 0)
+			usage("clients and seconds must be positive");
+		
+		final Map<RequestType, Integer> mix = parseMix(option(opts, "mix", "static:50,ftl:20,app:20,post:10"));
+		final RequestType [] types = mix.keySet().toArray(new RequestType[mix.size()]);
+		final int [] cumulativeWeights = new int[types.length];
+		final byte [][] requests = new byte[types.length][];
+		final TypeStats [] stats = new TypeStats[types.length];
+		int weight = 0;
+		for (int i=0;i<types.length;i++)
+		{
+			weight += mix.get(types[i]);
+			cumulativeWeights[i] = weight;
+			requests[i] = types[i].toRequest(port);
+			stats[i] = new TypeStats();
+		}
+		
+		Properties connector = null;
+		if (propsFile != null)
+		{
+			connector = new Properties();
+			final InputStream is = new FileInputStream(propsFile);
+			try {
+				connector.load(is);
+			} finally {
+				is.close();
+			}
+		}
+		VirtualThreadExecutor executor = null;
+		if (virtual > 0)
+		{
+			executor = VirtualThreadExecutor.create(virtual);
+			if (executor == null)
+				usage("Virtual threads are not available on Java " + System.getProperty("java.version"));
+		}
+		
+		final WebServer server = createServer(port, connector, executor);
+		server.startUp();
+		
+		// run
+		final long interval = rate > 0 ? (long)(TimeUnit.SECONDS.toNanos(1) * clients / rate) : 0;
+		final long measureStart = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmup);
+		final long end = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+		final List<Thread> threads = new ArrayList<Thread>(clients);
+		for (int i=0;i<clients;i++)
+		{
+			final Thread t = new Thread(new Client(i, port, requests, cumulativeWeights, stats, open, interval, measureStart, end), "loadtest-" + i);
+			t.setDaemon(true);
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t:threads)
+			t.join();
+		final double duration = Math.max(System.nanoTime(), end) - measureStart;
+		
+		// report
+		final JSONObject config = new JSONObject();
+		config.put("mode", mode);
+		config.put("clients", clients);
+		config.put("rate", rate);
+		config.put("seconds", seconds);
+		config.put("warmupSeconds", warmup);
+		config.put("port", port);
+		final JSONObject mixJson = new JSONObject();
+		for (Map.Entry<RequestType, Integer> e:mix.entrySet())
+			mixJson.put(e.getKey().getName(), e.getValue().intValue());
+		config.put("mix", mixJson);
+		config.put("executor", executor != null ? "virtual(" + virtual + ")" : "platform");
+		final JSONObject connectorJson = new JSONObject();
+		final Properties effective = connector != null ? connector : WebServer.getDefaultConnectorAttributes();
+		for (String p:effective.stringPropertyNames())
+			connectorJson.put(p, effective.getProperty(p));
+		config.put("connector", connectorJson);
+		
+		final JSONObject result = new JSONObject();
+		result.put("config", config);
+		result.put("java", System.getProperty("java.version"));
+		result.put("vm", System.getProperty("java.vm.name"));
+		result.put("processors", Runtime.getRuntime().availableProcessors());
+		result.put("durationSeconds", duration / 1e9);
+		
+		final LatencyHistogram allRaw = new LatencyHistogram();
+		final LatencyHistogram allCorrected = new LatencyHistogram();
+		long allErrors = 0;
+		final JSONObject typesJson = new JSONObject();
+		final StringBuilder summary = new StringBuilder();
+		summary.append(String.format("%s loop, %d clients, %s, %ds (+%ds warmup)%n", mode, clients,
+				rate > 0 ? String.format("%.0f req/s", rate) : "unpaced", seconds, warmup));
+		summary.append(String.format("%-8s %10s %7s %28s %28s%n", "", "req/s", "errors",
+				"raw p50/p99/p999 ms", "corrected p50/p99/p999 ms"));
+		for (int i=0;i<types.length;i++)
+		{
+			allRaw.add(stats[i].mRaw);
+			allCorrected.add(stats[i].mCorrected);
+			allErrors += stats[i].mErrors.get();
+			typesJson.put(types[i].getName(), toJSON(stats[i].mRaw, stats[i].mCorrected, stats[i].mErrors.get(), duration));
+			summary.append(summarize(types[i].getName(), stats[i].mRaw, stats[i].mCorrected, stats[i].mErrors.get(), duration));
+		}
+		result.put("total", toJSON(allRaw, allCorrected, allErrors, duration));
+		result.put("types", typesJson);
+		summary.append(summarize("total", allRaw, allCorrected, allErrors, duration));
+		
+		if (outFile != null)
+		{
+			final Writer w = new OutputStreamWriter(new FileOutputStream(outFile), "UTF-8");
+			try {
+				w.write(result.toString(2));
+				w.write('\n');
+			} finally {
+				w.close();
+			}
+			summary.append("Results written to ").append(outFile).append('\n');
+		}
+		else
+			System.out.println(result.toString(2));
+		System.err.print(summary);
+		// exiting stops the server too
+		System.exit(0);
+	}
+	
+	/**
+	 * Create the server under test, with the same servlets as HelloWorldMain and LaunchTest.
+	 * POSTs to HelloWorld.ftl answer with a standard JSON response rather than shutting down.
+	 */
+	static WebServer createServer(int port, Properties connector, VirtualThreadExecutor executor) {
+		final WebServer server = new WebServer(port, connector, null, false, executor);
+		server.registerServlet(new StaticResourceServlet(Loader.class), "SRS", new String [] { "/favicon.ico", "/res/*" } );
+		server.registerServlet(new FTLServlet(Loader.createTemplateLoader(), new FTLDataMapFactory() {
+		
+			@Override
+			public HashMap<?,?> getFTLDataMap(String tmplName) {
+				HashMap<String,String> h = new HashMap<String,String>();
+				h.put("testdata", "This is dynamic data!");
+				return h;
+			}
+		
+		}), "FTL", new String [] { "/ftl/*" } );
+		
+		final UserSecurity noSecurity = new UserSecurity() {
+		
+			@Override
+			public void handleAction(String action, UserInfo user,
+					HttpServletRequest request, HttpServletResponse response)
+					throws ServletException, IOException {
+				WebLib.renderStandardJSONResponse(response, true, "Saved " + request.getParameter("message"));
+			}
+			
+			@Override
+			public UserInfo getUserInfo(HttpServletRequest req,
+					HttpServletResponse resp) throws IOException {
+				return new UserInfo("user", UserInfo.kLoginUser);
+			}
+			
+			@Override
+			public void loginSecurityRedirect(HttpServletResponse response,
+					int reqLevel, int currLevel) throws IOException {
+				// every request has a user
+			}
+		};
+		server.registerServlet(new HelloWorldAppServlet(noSecurity, "action"), "HELLO", new String [] { "/hello" });
+		return server;
+	}
+	
+	static JSONObject toJSON(LatencyHistogram raw, LatencyHistogram corrected, long errors, double durationNanos) throws Exception {
+		final JSONObject json = new JSONObject();
+		json.put("requests", raw.getCount());
+		json.put("errors", errors);
+		json.put("throughput", raw.getCount() / (durationNanos / 1e9));
+		json.put("latencyMs", toJSON(raw));
+		json.put("correctedLatencyMs", toJSON(corrected));
+		return json;
+	}
+	
+	static JSONObject toJSON(LatencyHistogram h) throws Exception {
+		final JSONObject json = new JSONObject();
+		for (int i=0;i<PERCENTILES.length;i++)
+			json.put(PERCENTILE_NAMES[i], millis(h.getValueAtPercentile(PERCENTILES[i])));
+		json.put("max", millis(h.getMax()));
+		json.put("mean", millis((long)h.getMean()));
+		json.put("count", h.getCount());
+		return json;
+	}
+	
+	static String summarize(String name, LatencyHistogram raw, LatencyHistogram corrected, long errors, double durationNanos) {
+		return String.format("%-8s %10.1f %7d %28s %28s%n", name, raw.getCount() / (durationNanos / 1e9), errors,
+				String.format("%.2f / %.2f / %.2f", millis(raw.getValueAtPercentile(50)), millis(raw.getValueAtPercentile(99)), millis(raw.getValueAtPercentile(99.9))),
+				String.format("%.2f / %.2f / %.2f", millis(corrected.getValueAtPercentile(50)), millis(corrected.getValueAtPercentile(99)), millis(corrected.getValueAtPercentile(99.9))));
+	}
+	
+	static double millis(long nanos) {
+		return Math.round(nanos / 1e3) / 1e3;
+	}
+	
+	/**
+	 * Parse a request mix such as 'static:50,ftl:20,app:20,post:10'.  A type without a
+	 * weight has weight 1.
+	 */
+	static Map<RequestType, Integer> parseMix(String spec) {
+		final Map<RequestType, Integer> mix = new LinkedHashMap<RequestType, Integer>();
+		for (String part:spec.split(","))
+		{
+			final String [] kv = part.trim().split(":");
+			RequestType type = null;
+			for (RequestType t:RequestType.values())
+			{
+				if (t.getName().equals(kv[0]))
+					type = t;
+			}
+			if (type == null)
+				usage("Unknown request type: " + kv[0]);
+			final int w = kv.length > 1 ? Integer.parseInt(kv[1]) : 1;
+			if (w > 0)
+				mix.put(type, w);
+		}
+		if (mix.isEmpty())
+			usage("The request mix is empty");
+		return mix;
+	}
+	
+	static String option(Map<String, String> opts, String key, String def) {
+		final String value = opts.get(key);
+		return value != null ? value : def;
+	}
+	
+	static void usage(String error) {
+		System.err.println(error);
+		System.err.println("Usage: LoadTest [mode=closed|open] [clients=N] [rate=N] [seconds=N] [warmup=N]");
+		System.err.println("                [mix=static:50,ftl:20,app:20,post:10] [port=N] [props=file] [virtual=N] [out=file]");
+		System.exit(2);
+	}
+}